@@ -0,0 +1,73 @@
+package org.simplemessaging;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base class of {@link MessageLogger} implementations, providing a default behaviour for the operations added to the
+ * interface after its first release. Implementations extending it keep compiling as the interface grows, and may
+ * override the defaults with more efficient versions.
+ * <p>
+ * The default streams load all the matching messages at once through the paging methods, and the retry schedule is
+ * not persisted, so failed messages are due immediately after a restart.
+ * @param <T>
+ */
+public abstract class AbstractMessageLogger<T extends Message> implements MessageLogger<T> {
+
+    /**
+     * Logs the message as processing and then as failed, which counts as a failed attempt
+     */
+    public void logSpilled(String listenerId, T notification) {
+        logProcessing(listenerId, notification);
+        logFailed(listenerId, notification, new ProcessorUnavailableException("The message was spilled by " + listenerId));
+    }
+
+    public int streamFailedMessages(String listenerName, int maxFailCount, MessageHandler<T> handler) {
+        return stream(getFailedMessages(listenerName, Integer.MAX_VALUE, maxFailCount), handler);
+    }
+
+    public int streamInProcessMessages(String listenerName, MessageHandler<T> handler) {
+        return stream(getInProcessMessages(listenerName, Integer.MAX_VALUE), handler);
+    }
+
+    /**
+     * Does nothing, the retry schedule is kept in memory only
+     */
+    public void logRetryAt(String listenerName, T notification, long retryAt) {
+    }
+
+    /**
+     * Streams the failed messages as not scheduled
+     */
+    public int streamRetrySchedule(String listenerName, final RetryScheduleHandler handler) {
+        return streamFailedMessages(listenerName, 0, new MessageHandler<T>() {
+            public boolean handle(T message) {
+                return handler.handle(message.getId(), message.getFailCount(), 0);
+            }
+        });
+    }
+
+    /**
+     * Looks the message up among the streamed failed messages
+     */
+    public T findFailedMessage(String listenerName, final int id) {
+        final List<T> found = new ArrayList<T>(1);
+        streamFailedMessages(listenerName, 0, new MessageHandler<T>() {
+            public boolean handle(T message) {
+                if(message.getId() != id) return true;
+                found.add(message);
+                return false;
+            }
+        });
+        return found.isEmpty()? null: found.get(0);
+    }
+
+    private int stream(List<T> messages, MessageHandler<T> handler) {
+        int count = 0;
+        for(T message: messages){
+            count++;
+            if(!handler.handle(message)) break;
+        }
+        return count;
+    }
+}
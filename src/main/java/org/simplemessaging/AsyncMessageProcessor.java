@@ -0,0 +1,23 @@
+package org.simplemessaging;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A {@link MessageProcessor} that processes message parts without blocking the calling thread, e.g. with a
+ * non-blocking HTTP client. Listeners log the outcome of each part when its future completes, so a few threads can keep
+ * many parts in process.
+ * <p>
+ * With key-ordered (striped) dispatch, parts of the same key are started in order, but may complete in any order.
+ *
+ * @param <T>
+ */
+public interface AsyncMessageProcessor<T extends Message> extends MessageProcessor<T> {
+
+	/**
+	 * Starts processing a message part. The returned future succeeds when the part is processed, or fails with a
+	 * {@link FailedProcessingException} if the part failed or any other exception if it's invalid.
+	 * @param message
+	 * @return
+	 */
+	ListenableFuture<?> processAsync(T message);
+}
@@ -0,0 +1,24 @@
+package org.simplemessaging;
+
+import java.util.List;
+
+/**
+ * A {@link MessageProcessor} able to process several message parts with a single downstream call, e.g. a bulk write.
+ * Listeners pass it batches of parts instead of calling {@link #process(Message)} once per part.
+ *
+ * @param <T>
+ */
+public interface BatchMessageProcessor<T extends Message> extends MessageProcessor<T> {
+
+	/**
+	 * Processes a batch of message parts. The outcome of each part is reported by the returned list, in the order of the
+	 * parts: null if the part was processed, a {@link FailedProcessingException} if it failed or any other exception if
+	 * it's invalid. Throwing an exception reports the same outcome for all the parts. A list of another size than the
+	 * batch is a processor error: the parts without an outcome, or all of them if the list is longer, are failed.
+	 * @param parts
+	 * @return the outcome of each part, or null if all the parts were processed
+	 * @throws FailedProcessingException
+	 * @throws InvalidMessageException
+	 */
+	List<Exception> processBatch(List<T> parts) throws FailedProcessingException, InvalidMessageException;
+}
@@ -0,0 +1,15 @@
+package org.simplemessaging;
+
+/**
+ * Optional interface of messages (and message parts) that must be processed in order with other messages of the same
+ * key, e.g. messages updating the same entity. See {@link org.simplemessaging.basic.GenericMessageListener#setStripes(int)}.
+ */
+public interface KeyedMessage {
+
+    /**
+     * Routing key of this message. Messages with equal keys are processed in order, one at a time. A null key means
+     * no ordering constraint.
+     * @return
+     */
+    Object getRoutingKey();
+}
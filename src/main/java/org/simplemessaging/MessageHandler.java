@@ -0,0 +1,16 @@
+package org.simplemessaging;
+
+/**
+ * Callback receiving the messages streamed by a {@link MessageLogger}. Messages are deserialised one at a time, so a
+ * handler that blocks (e.g. while its listener is busy) holds back the stream.
+ *
+ * @param <T>
+ */
+public interface MessageHandler<T extends Message> {
+
+    /**
+     * @param message
+     * @return false to stop the stream
+     */
+    boolean handle(T message);
+}
@@ -4,6 +4,7 @@ import java.util.List;
 
 /**
  * This is the logging interface for the events that must occur in a {@link org.simplemessaging.fetching.MessageFetcher} or a {@link MessageListener}.
+ * Implementations should extend {@link AbstractMessageLogger}, which provides defaults for the operations added later on.
  * @author MassaioliR
  *
  * @param <T>
@@ -20,9 +21,58 @@ public interface MessageLogger<T extends Message> {
 	
 	void logInvalid(String listenerId, T notification, Exception e);
 
+    /**
+     * Logs a message that was received but not processed, e.g. because the processing queue was full, as failed
+     * without counting a failed attempt, so that it's resubmitted by the next retry
+     * @param listenerId
+     * @param notification
+     */
+    void logSpilled(String listenerId, T notification);
+
     List<T> getInProcessMessages(String listenerId, int max);
 
     List<T> getFailedMessages(String listenerId, int max);
     
     List<T> getFailedMessages(String listenerName, int max, int maxFailCount);
+
+    /**
+     * Streams all the failed messages to the handler, without loading them in memory at once
+     * @param listenerName
+     * @param maxFailCount max fail count of the streamed messages, 0 means any
+     * @param handler
+     * @return the number of messages handled
+     */
+    int streamFailedMessages(String listenerName, int maxFailCount, MessageHandler<T> handler);
+
+    /**
+     * Streams all the in-process messages to the handler, without loading them in memory at once
+     * @param listenerName
+     * @param handler
+     * @return the number of messages handled
+     */
+    int streamInProcessMessages(String listenerName, MessageHandler<T> handler);
+
+    /**
+     * Persists the time of the next processing attempt of a failed message
+     * @param listenerName
+     * @param notification
+     * @param retryAt time in millis
+     */
+    void logRetryAt(String listenerName, T notification, long retryAt);
+
+    /**
+     * Streams the id, fail count and next attempt time of all the failed messages to the handler
+     * @param listenerName
+     * @param handler
+     * @return the number of messages handled
+     */
+    int streamRetrySchedule(String listenerName, RetryScheduleHandler handler);
+
+    /**
+     * Finds a message if it's still failed
+     * @param listenerName
+     * @param id
+     * @return null if the message is not found or it's not failed
+     */
+    T findFailedMessage(String listenerName, int id);
 }
@@ -0,0 +1,18 @@
+package org.simplemessaging;
+
+import java.util.List;
+
+/**
+ * Merges small messages into a composite message, the inverse of {@link Message#partition(int)}. Used to coalesce
+ * messages before they reach a listener, see {@link org.simplemessaging.basic.CoalescingMessageListener}.
+ *
+ * @param <T>
+ */
+public interface MessageMerger<T extends Message> {
+
+    /**
+     * @param messages two or more messages, in the order received
+     * @return a message containing the items of all the messages, with an id of its own
+     */
+    T merge(List<T> messages);
+}
@@ -0,0 +1,12 @@
+package org.simplemessaging;
+
+/**
+ * Optional interface of messages choosing their processing lane when received by a listener.
+ */
+public interface PrioritizedMessage {
+
+    /**
+     * @return the lane of this message, null for the default ({@link Priority#LIVE})
+     */
+    Priority getPriority();
+}
@@ -0,0 +1,13 @@
+package org.simplemessaging;
+
+/**
+ * Processing lanes of a listener, see {@link org.simplemessaging.basic.GenericMessageListener#setPriorityWorkers(int)}
+ */
+public enum Priority {
+    /** messages received from fetchers or other sources */
+    LIVE,
+    /** failed messages resubmitted by a retry */
+    RETRY,
+    /** failed messages resubmitted in bulk by a recovery */
+    REPLAY
+}
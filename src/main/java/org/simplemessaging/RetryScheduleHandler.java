@@ -0,0 +1,16 @@
+package org.simplemessaging;
+
+/**
+ * Callback receiving the retry schedule of failed messages streamed by a {@link MessageLogger}. Only the message
+ * metadata is read, messages are not deserialised.
+ */
+public interface RetryScheduleHandler {
+
+    /**
+     * @param id id of the failed message
+     * @param failCount number of times the message failed
+     * @param retryAt time of the next processing attempt in millis, 0 if it wasn't scheduled
+     * @return false to stop the stream
+     */
+    boolean handle(int id, int failCount, long retryAt);
+}
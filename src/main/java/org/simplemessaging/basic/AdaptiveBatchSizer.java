@@ -0,0 +1,167 @@
+package org.simplemessaging.basic;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Adjusts the partition size of a listener from the measured processing outcomes. Outcomes are aggregated in windows
+ * of windowSize parts; at the end of each window the size is:
+ * <ul>
+ * <li>multiplied by decreaseFactor when the failure ratio exceeds maxFailureRatio, or the average processing time of
+ * a part exceeds maxPartLatency</li>
+ * <li>otherwise moved by increaseStep in the current direction, which is reversed whenever the throughput (items per
+ * second of processing time) drops compared to the previous window</li>
+ * </ul>
+ * The size is always kept within [minBatchSize, maxBatchSize].
+ */
+public class AdaptiveBatchSizer {
+    final static Logger logger = Logger.getLogger(AdaptiveBatchSizer.class);
+
+    private int minBatchSize = 1;
+
+    private int maxBatchSize = 100;
+
+    private int initialBatchSize = 5;
+
+    private int increaseStep = 1;
+
+    private double decreaseFactor = 0.5;
+
+    private double maxFailureRatio = 0.1;
+
+    private long maxPartLatency = 0; //max average processing millis of a part. 0 means unlimited
+
+    private int windowSize = 50;
+
+    private volatile int batchSize = -1;
+
+    private int direction = 1;
+
+    private double lastThroughput;
+
+    private int parts;
+
+    private int failures;
+
+    private long items;
+
+    private long nanos;
+
+    /**
+     * Current partition size
+     * @return
+     */
+    public int getBatchSize() {
+        int size = batchSize;
+        return size > 0 ? size : clamp(initialBatchSize);
+    }
+
+    /**
+     * Records the outcome of processing a message part
+     * @param items number of items of the part
+     * @param elapsedNanos processing time of the part
+     * @param failed whether the part failed
+     */
+    public synchronized void record(int items, long elapsedNanos, boolean failed) {
+        this.parts++;
+        this.items += items;
+        this.nanos += elapsedNanos;
+        if (failed) this.failures++;
+        if (parts >= windowSize) adjust();
+    }
+
+    private void adjust() {
+        int size = getBatchSize();
+        int next;
+        double failureRatio = (double) failures / parts;
+        if (failureRatio > maxFailureRatio || (maxPartLatency > 0 && nanos / parts > maxPartLatency * 1000000L)) {
+            next = (int) (size * decreaseFactor);
+            direction = 1;
+            lastThroughput = 0;
+        } else {
+            double throughput = nanos == 0 ? Double.MAX_VALUE : items * 1e9 / nanos;
+            if (throughput < lastThroughput) direction = -direction;
+            lastThroughput = throughput;
+            next = size + direction * increaseStep;
+        }
+        batchSize = clamp(next);
+        if (batchSize != size && logger.isDebugEnabled())
+            logger.debug("Batch size changed from " + size + " to " + batchSize + ", failure ratio:" + failureRatio);
+        parts = 0;
+        failures = 0;
+        items = 0;
+        nanos = 0;
+    }
+
+    private int clamp(int size) {
+        return Math.max(minBatchSize, Math.min(maxBatchSize, size));
+    }
+
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    public void setMinBatchSize(int minBatchSize) {
+        this.minBatchSize = minBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int getInitialBatchSize() {
+        return initialBatchSize;
+    }
+
+    public void setInitialBatchSize(int initialBatchSize) {
+        this.initialBatchSize = initialBatchSize;
+    }
+
+    public int getIncreaseStep() {
+        return increaseStep;
+    }
+
+    public void setIncreaseStep(int increaseStep) {
+        this.increaseStep = increaseStep;
+    }
+
+    public double getDecreaseFactor() {
+        return decreaseFactor;
+    }
+
+    public void setDecreaseFactor(double decreaseFactor) {
+        this.decreaseFactor = decreaseFactor;
+    }
+
+    public double getMaxFailureRatio() {
+        return maxFailureRatio;
+    }
+
+    public void setMaxFailureRatio(double maxFailureRatio) {
+        this.maxFailureRatio = maxFailureRatio;
+    }
+
+    public long getMaxPartLatency() {
+        return maxPartLatency;
+    }
+
+    /**
+     * Sets the max average processing time of a part, in millis, above which the size is decreased. 0 (default)
+     * means unlimited.
+     * @param maxPartLatency
+     */
+    public void setMaxPartLatency(long maxPartLatency) {
+        this.maxPartLatency = maxPartLatency;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+}
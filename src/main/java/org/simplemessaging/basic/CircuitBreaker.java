@@ -0,0 +1,174 @@
+package org.simplemessaging.basic;
+
+import org.apache.log4j.Logger;
+import org.simplemessaging.MessageProcessor;
+
+/**
+ * Circuit breaker guarding a message processor. While closed, the result of {@link MessageProcessor#isAvailable()} is
+ * cached for availabilityTtl millis, and the circuit opens when the processor is unavailable or when at least
+ * failureRatio of the recent processing outcomes (at least minCalls, within windows of windowSize outcomes) failed.
+ * <p>
+ * While open, messages are rejected without calling the processor. After openMillis the next message checks the
+ * processor availability (half-open): if available, that message alone is let through, and the circuit closes or
+ * opens again depending on its outcome.
+ */
+public class CircuitBreaker {
+    final static Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private long availabilityTtl = 5000;
+
+    private double failureRatio = 0.5;
+
+    private int minCalls = 20;
+
+    private int windowSize = 100;
+
+    private long openMillis = 10000;
+
+    private State state = State.CLOSED;
+
+    private boolean available = true;
+
+    private boolean probing;
+
+    private long checkedAt;
+
+    private long changedAt;
+
+    private int calls;
+
+    private int failures;
+
+    /**
+     * Whether a message can be passed to the processor. Only one thread at a time checks the processor availability.
+     * @param processor
+     * @return
+     */
+    public boolean isAvailable(MessageProcessor<?> processor) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            switch (state) {
+                case CLOSED:
+                    if (probing || now - checkedAt < availabilityTtl) return available;
+                    break;
+                case OPEN:
+                    if (probing || now - changedAt < openMillis) return false;
+                    break;
+                case HALF_OPEN:
+                    if (probing || now - changedAt < openMillis) return false; //the trial message hasn't completed yet
+                    break;
+            }
+            probing = true;
+        }
+        boolean up;
+        try {
+            up = processor.isAvailable();
+        } catch (RuntimeException e) {
+            logger.error("Failed checking the availability of " + processor, e);
+            up = false;
+        }
+        synchronized (this) {
+            probing = false;
+            checkedAt = now;
+            available = up;
+            if (!up) {
+                open(now);
+            } else if (state != State.CLOSED) {
+                changeState(State.HALF_OPEN, now);
+            }
+            return up;
+        }
+    }
+
+    /**
+     * Records the processing outcome of a message
+     * @param failed
+     */
+    public synchronized void record(boolean failed) {
+        long now = System.currentTimeMillis();
+        switch (state) {
+            case HALF_OPEN:
+                if (failed) open(now);
+                else changeState(State.CLOSED, now);
+                return;
+            case OPEN:
+                return;
+            default:
+                calls++;
+                if (failed) failures++;
+                if (calls >= minCalls && failures >= failureRatio * calls) {
+                    open(now);
+                } else if (calls >= windowSize) {
+                    calls = 0;
+                    failures = 0;
+                }
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void open(long now) {
+        changeState(State.OPEN, now);
+    }
+
+    private void changeState(State newState, long now) {
+        if (state != newState) logger.info("Circuit " + state + " -> " + newState);
+        state = newState;
+        changedAt = now;
+        calls = 0;
+        failures = 0;
+    }
+
+    public long getAvailabilityTtl() {
+        return availabilityTtl;
+    }
+
+    /**
+     * Sets the millis the processor availability is cached while the circuit is closed
+     * @param availabilityTtl
+     */
+    public void setAvailabilityTtl(long availabilityTtl) {
+        this.availabilityTtl = availabilityTtl;
+    }
+
+    public double getFailureRatio() {
+        return failureRatio;
+    }
+
+    public void setFailureRatio(double failureRatio) {
+        this.failureRatio = failureRatio;
+    }
+
+    public int getMinCalls() {
+        return minCalls;
+    }
+
+    public void setMinCalls(int minCalls) {
+        this.minCalls = minCalls;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * Sets the millis the circuit stays open before letting a trial message through. This is also the max time to
+     * wait for the outcome of the trial message before trying another one.
+     * @param openMillis
+     */
+    public void setOpenMillis(long openMillis) {
+        this.openMillis = openMillis;
+    }
+}
@@ -0,0 +1,265 @@
+package org.simplemessaging.basic;
+
+import org.apache.log4j.Logger;
+import org.simplemessaging.*;
+import org.simplemessaging.util.AbstractSmartLifeCycle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listener that coalesces small messages into composites of up to maxSize items before passing them on to another
+ * listener (e.g. a {@link GenericMessageListener}), so that each composite is scheduled and logged once.
+ * Messages are buffered until maxSize items are collected or lingerMillis elapse since the first buffered message.
+ * <p>
+ * When a message logger is set, buffered messages are logged as processing under this listener's id before
+ * {@link #receive(Message)} returns, and as completed once their composite is passed on. Messages left over by a
+ * previous run are buffered again on start. Without a message logger, buffered messages are lost if the process dies
+ * within the linger time. Composites that the target listener rejects are put back in the buffer and passed on again
+ * after lingerMillis.
+ * <p>
+ * This durability costs a log row per small message, written as processing and again as completed, on top of the row
+ * of the composite logged by the target listener. Only the target listener's scheduling and logging are coalesced. To
+ * keep the cost of the buffer's log low, use a logger that groups writes, such as a {@link DbMessageLogger} in
+ * {@link DbMessageLogger.WriteMode#FLUSHED} mode (a JDBC batch per flush, still written before {@link #receive(Message)}
+ * returns) or a {@link JournalMessageLogger}, rather than a synchronous database logger.
+ * @param <T>
+ */
+public class CoalescingMessageListener<T extends Message> extends AbstractSmartLifeCycle implements MessageListener<T> {
+    final static Logger logger = Logger.getLogger(CoalescingMessageListener.class);
+
+    private MessageListener<T> messageListener;
+
+    private MessageMerger<T> messageMerger;
+
+    private MessageLogger<T> messageLogger; //logs the buffered messages when set
+
+    private String listenerId = "coalescer";
+
+    private int maxSize = 5; //usually the processingBatchSize of the target listener
+
+    private long lingerMillis = 100;
+
+    private List<T> buffer = new ArrayList<T>();
+
+    private int bufferedItems;
+
+    private ScheduledExecutorService timer;
+
+    public void receive(T message) throws ListenerNotRunningException, ProcessorUnavailableException {
+        if(!this.isRunning() || ! this.isEnabled()){
+            throw new ListenerNotRunningException("This listener has not started yet or it has been disabled.");
+        }
+        List<T> earlier = null;
+        List<T> batch = null;
+        boolean large = message.size() >= maxSize;
+        if (!large && messageLogger != null) messageLogger.logProcessing(listenerId, message);
+        synchronized (this) {
+            if (large || bufferedItems + message.size() > maxSize) earlier = take();
+            if (!large) {
+                buffer.add(message);
+                bufferedItems += message.size();
+                if (bufferedItems >= maxSize) batch = take();
+                else if (buffer.size() == 1) scheduleFlush();
+            }
+        }
+        boolean delivered = false;
+        try {
+            if (earlier != null) deliver(earlier);
+            earlier = null;
+            if (batch != null) deliver(batch);
+            delivered = true;
+        } finally {
+            if (!delivered) restore(earlier, batch, message);
+        }
+        if (large) messageListener.receive(message);
+    }
+
+    /**
+     * Puts back the messages of composites that failed to be passed on, except the message being received, which is
+     * handed back to its caller with the exception
+     */
+    private void restore(List<T> earlier, List<T> batch, T received) {
+        List<T> messages = new ArrayList<T>();
+        if (earlier != null) messages.addAll(earlier);
+        if (batch != null) messages.addAll(batch);
+        boolean handedBack = messages.remove(received);
+        synchronized (this) {
+            if (!handedBack && buffer.remove(received)) {
+                bufferedItems -= received.size();
+                handedBack = true;
+            }
+            if (!messages.isEmpty()) restore(messages);
+        }
+        if (handedBack && messageLogger != null) messageLogger.logCompleted(listenerId, received);
+    }
+
+    private synchronized void restore(List<T> messages) {
+        buffer.addAll(0, messages);
+        for (T message : messages) bufferedItems += message.size();
+        if (timer != null && !timer.isShutdown()) scheduleFlush();
+    }
+
+    /**
+     * Passes on the buffered messages
+     */
+    public void flush() throws ListenerNotRunningException, ProcessorUnavailableException {
+        List<T> batch;
+        synchronized (this) {
+            batch = take();
+        }
+        if (batch == null) return;
+        boolean delivered = false;
+        try {
+            deliver(batch);
+            delivered = true;
+        } finally {
+            if (!delivered) restore(batch);
+        }
+    }
+
+    private void flushLingering() {
+        List<T> batch;
+        synchronized (this) {
+            batch = take();
+        }
+        if (batch == null) return;
+        try {
+            deliver(batch);
+        } catch (Exception e) {
+            logger.error("Failed passing on " + batch.size() + " coalesced messages, retrying in " + lingerMillis + "ms", e);
+            restore(batch);
+        }
+    }
+
+    private void scheduleFlush() {
+        timer.schedule(new Runnable() {
+            public void run() {
+                flushLingering();
+            }
+        }, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private List<T> take() {
+        if (buffer.isEmpty()) return null;
+        List<T> batch = buffer;
+        buffer = new ArrayList<T>();
+        bufferedItems = 0;
+        return batch;
+    }
+
+    private void deliver(List<T> batch) throws ListenerNotRunningException, ProcessorUnavailableException {
+        messageListener.receive(batch.size() == 1 ? batch.get(0) : messageMerger.merge(batch));
+        if (messageLogger == null) return;
+        for (T message : batch) messageLogger.logCompleted(listenerId, message);
+    }
+
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE; //stopped before the target listener
+    }
+
+    @Override
+    protected void doStart() {
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CoalescingMessageListener-linger");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (messageLogger != null) recover();
+    }
+
+    /**
+     * Buffers again the messages logged by a previous run and not passed on
+     */
+    private void recover() {
+        messageLogger.register(listenerId);
+        final List<T> messages = new ArrayList<T>();
+        messageLogger.streamFailedMessages(listenerId, 0, new MessageHandler<T>() {
+            public boolean handle(T message) {
+                messages.add(message);
+                return true;
+            }
+        });
+        if (messages.isEmpty()) return;
+        logger.info("Buffering " + messages.size() + " messages left over by " + listenerId);
+        restore(messages);
+    }
+
+    @Override
+    protected void doStop() {
+        if (timer != null) timer.shutdownNow();
+        try {
+            flush();
+        } catch (Exception e) {
+            logger.error("Failed passing on the coalesced messages on shutdown", e);
+        }
+    }
+
+    public MessageListener<T> getMessageListener() {
+        return messageListener;
+    }
+
+    public void setMessageListener(MessageListener<T> messageListener) {
+        this.messageListener = messageListener;
+    }
+
+    public MessageMerger<T> getMessageMerger() {
+        return messageMerger;
+    }
+
+    public void setMessageMerger(MessageMerger<T> messageMerger) {
+        this.messageMerger = messageMerger;
+    }
+
+    public MessageLogger<T> getMessageLogger() {
+        return messageLogger;
+    }
+
+    /**
+     * Sets the logger of the buffered messages, which logs each message twice (processing, then completed). Without one,
+     * buffered messages are lost if the process dies.
+     * @param messageLogger
+     */
+    public void setMessageLogger(MessageLogger<T> messageLogger) {
+        this.messageLogger = messageLogger;
+    }
+
+    public String getListenerId() {
+        return listenerId;
+    }
+
+    /**
+     * Sets the id the buffered messages are logged under, distinct from the id of the target listener
+     * @param listenerId
+     */
+    public void setListenerId(String listenerId) {
+        this.listenerId = listenerId;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the max number of items of a coalesced message. Messages of this size or larger are passed on as they are.
+     * @param maxSize
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    public void setLingerMillis(long lingerMillis) {
+        this.lingerMillis = lingerMillis;
+    }
+}
@@ -1,72 +1,173 @@
 package org.simplemessaging.basic;
 
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.Serializer;
-import de.javakaffee.kryoserializers.ArraysAsListSerializer;
-import de.javakaffee.kryoserializers.SubListSerializer;
 import org.apache.log4j.Logger;
+import org.simplemessaging.AbstractMessageLogger;
 import org.simplemessaging.Message;
-import org.simplemessaging.MessageLogger;
+import org.simplemessaging.MessageHandler;
+import org.simplemessaging.RetryScheduleHandler;
+import org.simplemessaging.basic.WriteBehindWriter.Kind;
+import org.simplemessaging.basic.WriteBehindWriter.LogEvent;
+import org.simplemessaging.serialization.KryoMessageSerializer;
+import org.simplemessaging.serialization.MessageBuffer;
+import org.simplemessaging.serialization.MessageSerializer;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 
 import javax.sql.DataSource;
-import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
- * MessageLogger implementations that persists notifications in a database
+ * MessageLogger implementations that persists notifications in a database.
+ * By default every log call is written synchronously. With {@link WriteMode#ASYNC} or {@link WriteMode#FLUSHED} log calls
+ * are queued and written in JDBC batches by a background writer.
+ * Synchronous calls can keep up to maxIdleConnections connections open between calls, with their prepared statements, so
+ * statements are prepared once per connection rather than on every call. This is off by default, as pooled DataSources
+ * usually cache statements already. A call failing on an idle connection (e.g. after a database restart) drops it and
+ * is retried once on a new connection.
+ * <p>
+ * When several nodes share the log tables of a listener, each node must have its own nodeId. Rows are then owned by
+ * the node that logged them as PROCESSING, or that claimed them for a retry, until their lease expires. Failed
+ * messages are claimed atomically (a conditional update per row, in a batch) when they are loaded, streamed or found, so
+ * that no two nodes resubmit the same message. Leases of in-process rows are renewed in the background, and in-process
+ * rows whose lease expired (their node died) are marked as failed, instead of marking all of them on register.
  * @param <T>
  */
-public class DbMessageLogger<T extends Message> implements MessageLogger<T> {
+public class DbMessageLogger<T extends Message> extends AbstractMessageLogger<T> implements DisposableBean {
 
     private final static Logger LOGGER = Logger.getLogger(DbMessageLogger.class);
     private static final int CAPACITY = 10000;
-
-    private int bufferCapacity = 10*1024;
+    private static final long FIRST = Integer.MIN_VALUE - 1L; //keyset bound before any id
 
     private enum Status{PROCESSING, FAILED, INVALID}
 
+    /**
+     * Durability of the log calls
+     */
+    public enum WriteMode{
+        /** log calls are written before returning */
+        SYNC,
+        /** log calls are queued for the background writer, blocking only while the queue is full */
+        ASYNC,
+        /** log calls are queued and wait until the background writer has flushed them, throwing a
+         * {@link LogWriteException} if they couldn't be written */
+        FLUSHED
+    }
+
     private DataSource dataSource;
 
     private String tablePrefix="LOG_";
 
-    private List<String> listeners = new ArrayList<String>();
+    private List<String> listeners = new CopyOnWriteArrayList<String>();
 
-    transient Kryo kryo ;
+    private WriteMode writeMode = WriteMode.SYNC;
 
-    public DbMessageLogger() {
-        kryo = new Kryo(){
-            public Serializer newSerializer(Class aClass) {
-                if(SubListSerializer.canSerialize(aClass))
-                    return new SubListSerializer(this);
-                return super.newSerializer(aClass);
-            }
-        };
-        kryo.register(Arrays.asList("").getClass(), new ArraysAsListSerializer(kryo));
-        kryo.setRegistrationOptional(true);
-    }
+    private int queueCapacity = CAPACITY;
+
+    private int flushSize = 100;
+
+    private long lingerMillis = 50;
+
+    private String upsertTemplate = LogStatements.MERGE_TEMPLATE;
+
+    private Map<String, LogStatements> statements = new ConcurrentHashMap<String, LogStatements>();
+
+    private Map<String, Long> cursors = new ConcurrentHashMap<String, Long>(); //last failed id returned, by listener
+
+    private int streamPageSize = 100;
+
+    private volatile WriteBehindWriter writer;
+
+    private StatementCache writerStatements;
+
+    private MessageSerializer serializer = new KryoMessageSerializer();
+
+    private boolean binaryStreams = true;
+
+    private String notificationType = "BLOB"; //SQL type of the serialised message column
+
+    private int maxIdleConnections = 0; //connections kept open with their statements between SYNC calls. 0 means none
+
+    private volatile BlockingQueue<StatementCache> idleStatements; //null when no connections are kept
+
+    private String nodeId; //owner of the rows logged or claimed by this node. null means a single node
+
+    private long leaseMillis = 5 * 60 * 1000;
+
+    private ScheduledExecutorService leaseTimer;
+
+    private final Set<String> recovered = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()); //listeners whose rows left by a previous run were released
 
     public void logProcessing(String listenerName, Message message) {
-        insertOrUpdateNotification(listenerName, message, Status.PROCESSING);
+        WriteBehindWriter writer = this.writer;
+        if(writer!=null)
+            enqueue(writer, listenerName, message, Kind.PROCESSING);
+        else
+            insertOrUpdateNotification(listenerName, message, Status.PROCESSING);
     }
 
     public void logCompleted(String listenerName, Message message) {
-        removeNotification(listenerName, message);
+        WriteBehindWriter writer = this.writer;
+        if(writer!=null)
+            enqueue(writer, listenerName, message, Kind.COMPLETED);
+        else
+            removeNotification(listenerName, message);
     }
 
     public void logFailed(String listenerName, Message message, Exception e) {
-        updateNotification(listenerName, message, Status.FAILED);
+        WriteBehindWriter writer = this.writer;
+        if(writer!=null)
+            enqueue(writer, listenerName, message, Kind.FAILED);
+        else
+            updateNotification(listenerName, message, Status.FAILED);
     }
 
     public void logInvalid(String listenerName, Message message, Exception e) {
-        updateNotification(listenerName, message, Status.INVALID);
+        WriteBehindWriter writer = this.writer;
+        if(writer!=null)
+            enqueue(writer, listenerName, message, Kind.INVALID);
+        else
+            updateNotification(listenerName, message, Status.INVALID);
+    }
+
+    /**
+     * Upserts the message as failed, keeping its fail count
+     */
+    @Override
+    public void logSpilled(String listenerName, Message message) {
+        WriteBehindWriter writer = this.writer;
+        if(writer!=null)
+            enqueue(writer, listenerName, message, Kind.SPILLED);
+        else
+            insertOrUpdateNotification(listenerName, message, Status.FAILED);
+    }
+
+    public void logRetryAt(String listenerName, T message, long retryAt) {
+        WriteBehindWriter writer = this.writer;
+        if(writer!=null)
+            writer.enqueue(new LogEvent(listenerName, message, Kind.RETRY, writeMode == WriteMode.FLUSHED, retryAt));
+        else
+            updateRetryAt(listenerName, message, retryAt);
     }
 
     public List<T> getFailedMessages(String listenerName, int max){
@@ -82,10 +183,8 @@ public class DbMessageLogger<T extends Message> implements MessageLogger<T> {
     }
     
     public T findNotification(String listenerName, int id){
-        String sql = "SELECT notification, failCount FROM \"" + tablePrefix + listenerName
-                + "\" WHERE id=? ";
-
-        List<Object> list = new JdbcTemplate(dataSource).query(sql, new RowMapper<Object>() {
+        flush();
+        List<Object> list = new JdbcTemplate(dataSource).query(statementsFor(listenerName).selectById, new RowMapper<Object>() {
             public Object mapRow(ResultSet resultSet, int i) throws SQLException {
                 T notification = deserialise(resultSet.getBytes(1));
                 notification.setFailCount(resultSet.getInt(2));
@@ -95,6 +194,20 @@ public class DbMessageLogger<T extends Message> implements MessageLogger<T> {
 
         return list.isEmpty()? null: (T) list.get(0);
     }
+
+    public T findFailedMessage(String listenerName, int id){
+        flush();
+        if(nodeId!=null && !claim(listenerName, id)) return null;
+        List<Object> list = new JdbcTemplate(dataSource).query(statementsFor(listenerName).selectByIdAndStatus, new RowMapper<Object>() {
+            public Object mapRow(ResultSet resultSet, int i) throws SQLException {
+                T notification = deserialise(resultSet.getBytes(1));
+                notification.setFailCount(resultSet.getInt(2));
+                return notification;
+            }
+        }, id, Status.FAILED.name());
+
+        return list.isEmpty()? null: (T) list.get(0);
+    }
     
     /**
      * Registers a notification listener for logging and marks any stalled notification as failed
@@ -103,6 +216,8 @@ public class DbMessageLogger<T extends Message> implements MessageLogger<T> {
     public void register(String listenerName){
         LOGGER.info("Registering Message logger for :" + listenerName);
         listeners.add(listenerName);
+        statements.put(listenerName, new LogStatements(tablePrefix + listenerName, upsertTemplate));
+        startWriter();
         Connection connection = null;
         try {
             connection = dataSource.getConnection();
@@ -110,7 +225,7 @@ public class DbMessageLogger<T extends Message> implements MessageLogger<T> {
             ResultSet tables = connection.getMetaData().getTables(null, null, tableName, null);
             if(!tables.next()){
                 LOGGER.info("Logging table not found for listener " + listenerName+ "; A new table will be created");
-                String sql = "CREATE TABLE \"" + tableName + "\" (id int not null, notification VARBINARY(100000)" +
+                String sql = "CREATE TABLE \"" + tableName + "\" (id int not null, notification " + notificationType +
                         ", status VARCHAR(15), PRIMARY KEY(id), failCount INT DEFAULT 0)";
                 LOGGER.debug("Executing :" + sql);
                 boolean result = connection.createStatement().execute(sql);
@@ -118,7 +233,15 @@ public class DbMessageLogger<T extends Message> implements MessageLogger<T> {
             }else{
                 LOGGER.info("Logging table already defined in database for " + listenerName);
             }
-            markStalledAsFailed(listenerName);
+            migrateNotificationColumn(connection, tableName, statementsFor(listenerName));
+            createColumns(connection, tableName, statementsFor(listenerName));
+            createIndexes(connection, tableName, statementsFor(listenerName));
+            if(nodeId!=null){
+                releaseStalled(listenerName, recovered.add(listenerName)); //later registers keep the rows in process
+                startLeaseTimer();
+            }else{
+                markStalledAsFailed(listenerName);
+            }
         } catch (SQLException e) {
             LOGGER.error("Failed registering notification logger for " + listenerName, e);
         } finally {
@@ -130,153 +253,662 @@ public class DbMessageLogger<T extends Message> implements MessageLogger<T> {
         }
     }
 
-    private void insertOrUpdateNotification(String listenerName, Message message, Status status){
-        String idSql = "SELECT id, status FROM \"" + tablePrefix + listenerName + "\" WHERE id=?";
-        String sql = "INSERT INTO \"" + tablePrefix + listenerName + "\" (id, message, status) values(?,?,?)";
-        Connection con = null;
-        int id = message.getId();
+    /**
+     * Widens the notification column of tables created by previous versions, which was limited to 100000 bytes
+     */
+    private void migrateNotificationColumn(Connection connection, String tableName, LogStatements sql) throws SQLException {
+        int type = Types.OTHER;
+        ResultSet rs = connection.getMetaData().getColumns(null, null, tableName, null);
+        while(rs.next()){
+            if("NOTIFICATION".equalsIgnoreCase(rs.getString("COLUMN_NAME"))) type = rs.getInt("DATA_TYPE");
+        }
+        rs.close();
+        if(type != Types.VARBINARY && type != Types.BINARY) return;
+        LOGGER.info("Changing the notification column of logging table " + tableName + " to " + notificationType);
+        Statement stmt = connection.createStatement();
         try {
-            con = dataSource.getConnection();
-            PreparedStatement idstmt = con.prepareStatement(idSql);
-            idstmt.setInt(1, id);
-            ResultSet rs = idstmt.executeQuery();
-
-            if(rs.next()){
-                LOGGER.debug("Message already logged: " + message);
-                if(!status.name().equals(rs.getString(2))){
-                    String updateSql = "UPDATE \"" + tablePrefix + listenerName + "\" SET status=? WHERE id=?";
-                    PreparedStatement pstmt = con.prepareStatement(updateSql);
-                    pstmt.setString(1, status.name());
-                    pstmt.setInt(2, id);
-                    pstmt.executeUpdate();
-                }
-                return;
+            stmt.execute("ALTER TABLE " + sql.table + " ALTER COLUMN notification " + notificationType);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Adds the columns missing in tables created by previous versions
+     */
+    private void createColumns(Connection connection, String tableName, LogStatements sql) throws SQLException {
+        Set<String> columns = new HashSet<String>();
+        ResultSet rs = connection.getMetaData().getColumns(null, null, tableName, null);
+        while(rs.next()){
+            columns.add(rs.getString("COLUMN_NAME").toUpperCase());
+        }
+        rs.close();
+        for(Map.Entry<String, String> column : sql.columns.entrySet()){
+            if(columns.contains(column.getKey())) continue;
+            LOGGER.info("Adding column " + column.getKey() + " to logging table " + tableName);
+            Statement stmt = connection.createStatement();
+            try {
+                stmt.execute("ALTER TABLE " + sql.table + " ADD COLUMN " + column.getValue());
+            } finally {
+                stmt.close();
+            }
+        }
+    }
+
+    /**
+     * Creates the indexes used by the status queries if they don't exist yet
+     */
+    private void createIndexes(Connection connection, String tableName, LogStatements sql) throws SQLException {
+        Set<String> indexes = new HashSet<String>();
+        ResultSet rs = connection.getMetaData().getIndexInfo(null, null, tableName, false, false);
+        while(rs.next()){
+            String name = rs.getString("INDEX_NAME");
+            if(name!=null) indexes.add(name.toUpperCase());
+        }
+        rs.close();
+        for(Map.Entry<String, String> index : sql.indexes.entrySet()){
+            if(indexes.contains(index.getKey().toUpperCase())) continue;
+            LOGGER.info("Creating index " + index.getKey() + " on logging table " + tableName);
+            Statement stmt = connection.createStatement();
+            try {
+                stmt.execute(index.getValue());
+            } finally {
+                stmt.close();
+            }
+        }
+    }
+
+    /**
+     * Statements of the given listener. These are built in {@link #register(String)}, but unregistered listeners
+     * are supported as well.
+     */
+    private LogStatements statementsFor(String listenerName){
+        LogStatements sql = statements.get(listenerName);
+        if(sql == null){
+            sql = new LogStatements(tablePrefix + listenerName, upsertTemplate);
+            statements.put(listenerName, sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Statements run on a borrowed connection
+     */
+    private interface Work<R> {
+        R run(StatementCache cache) throws SQLException;
+    }
+
+    /**
+     * Runs the work on an idle connection with its prepared statements, or on a new one. If it fails on an idle
+     * connection, which may have been closed by the database in the meantime, the connection is dropped and the work
+     * is run once more on a new connection.
+     */
+    private <R> R execute(Work<R> work) throws SQLException {
+        BlockingQueue<StatementCache> idle = idleStatements;
+        StatementCache cache = idle != null? idle.poll(): null;
+        if(cache != null){
+            try {
+                return run(cache, work);
+            } catch (SQLException e) {
+                LOGGER.warn("Failed logging on an idle connection, retrying on a new connection", e);
             }
-            
-            PreparedStatement pstmt = con.prepareStatement(sql);
-            pstmt.setInt(1, id);
-            pstmt.setBytes(2, serialise(message));
-            pstmt.setString(3, status.name());
-            int count = pstmt.executeUpdate();
+        }
+        return run(new StatementCache(dataSource.getConnection()), work);
+    }
+
+    /**
+     * Runs the work and keeps the connection for the next call, unless it failed
+     */
+    private <R> R run(StatementCache cache, Work<R> work) throws SQLException {
+        boolean failed = true;
+        try {
+            R result = work.run(cache);
+            failed = false;
+            return result;
+        } catch (RuntimeException e) {
+            failed = false; //not a connection failure
+            throw e;
+        } finally {
+            if(failed) cache.close();
+            else releaseStatements(cache);
+        }
+    }
+
+    /**
+     * Keeps a connection and its prepared statements for the next call, up to maxIdleConnections
+     */
+    private void releaseStatements(StatementCache cache){
+        BlockingQueue<StatementCache> idle = idleStatements;
+        if(idle != null && idle.offer(cache)) return;
+        cache.close();
+    }
+
+    private void insertOrUpdateNotification(final String listenerName, final Message message, final Status status){
+        try {
+            execute(new Work<Void>() {
+                public Void run(StatementCache cache) throws SQLException {
+                    PreparedStatement pstmt = cache.prepare(statementsFor(listenerName).upsert);
+                    MessageBuffer data = serializer.serialise(message);
+                    try {
+                        bindUpsert(pstmt, message, data, binaryStreams, status);
+                        pstmt.executeUpdate();
+                    } finally {
+                        data.release();
+                    }
+                    return null;
+                }
+            });
         } catch (SQLException e) {
             LOGGER.error("Failed inserting message log " + message, e);
-        } finally {
-            try{if(con!=null) con.close();}
-            catch (Exception e){LOGGER.error(e);}
         }
     }
 
-    private void removeNotification(String listenerName, Message message){
-        String sql = "DELETE \"" + tablePrefix + listenerName + "\" WHERE id=?";
-        Connection con = null;
+    /**
+     * Binds the upsert parameters. When streamed, the serialised message is read straight from the serializer's buffer,
+     * so the buffer must not be released before the statement executes. PROCESSING rows are owned by this node in the
+     * same statement, other rows are released.
+     */
+    private void bindUpsert(PreparedStatement pstmt, Message message, MessageBuffer data, boolean stream, Status status)
+            throws SQLException {
+        pstmt.setInt(1, message.getId());
+        if(stream)
+            pstmt.setBinaryStream(2, data.getInputStream(), data.getLength());
+        else
+            pstmt.setBytes(2, data.toByteArray());
+        pstmt.setString(3, status.name());
+        boolean owned = nodeId!=null && status == Status.PROCESSING;
+        pstmt.setString(4, owned? nodeId: null);
+        pstmt.setLong(5, owned? System.currentTimeMillis() + leaseMillis: 0);
+    }
+
+    /**
+     * Statement marking a row as failed, which releases the row when claiming
+     */
+    private String markFailed(LogStatements sql){
+        return nodeId!=null? sql.markFailedReleased: sql.markFailed;
+    }
+
+    private void removeNotification(final String listenerName, final Message message){
         try {
-            con = dataSource.getConnection();
-            PreparedStatement pstmt = con.prepareStatement(sql);
-            pstmt.setInt(1, message.getId());
-            int count = pstmt.executeUpdate();
+            execute(new Work<Void>() {
+                public Void run(StatementCache cache) throws SQLException {
+                    PreparedStatement pstmt = cache.prepare(statementsFor(listenerName).delete);
+                    pstmt.setInt(1, message.getId());
+                    pstmt.executeUpdate();
+                    return null;
+                }
+            });
         }catch (SQLException e){
             LOGGER.error("Failed deleting message log", e);
-        } finally {
-            if(con!=null){
-                try{con.close();}
-                catch (Exception e){LOGGER.error(e);}
-            }
         }
     }
 
-    private void updateNotification(String listenerName, Message message, Status status){
-        String sql = "UPDATE \"" + tablePrefix + listenerName
-                + "\" SET " + (status== Status.FAILED?"failCount=failCount+1," :"") //increase failCount if it's FAILED
-                + " status=? WHERE id=?";
-
-        Connection con = null;
+    private void updateNotification(String listenerName, final Message message, final Status status){
+        final LogStatements sql = statementsFor(listenerName);
         try {
-            con = dataSource.getConnection();
-            PreparedStatement pstmt = con.prepareStatement(sql);
-            pstmt.setString(1, status.toString());
-            pstmt.setInt(2, message.getId());
-            int count = pstmt.executeUpdate();
-            if(count==0)
-                LOGGER.warn("No rows affected by update of:" + message + ", " + status);
+            execute(new Work<Void>() {
+                public Void run(StatementCache cache) throws SQLException {
+                    PreparedStatement pstmt = cache.prepare(status== Status.FAILED? markFailed(sql): sql.markInvalid); //increase failCount if it's FAILED
+                    pstmt.setString(1, status.toString());
+                    pstmt.setInt(2, message.getId());
+                    int count = pstmt.executeUpdate();
+                    if(count==0)
+                        LOGGER.warn("No rows affected by update of:" + message + ", " + status);
+                    return null;
+                }
+            });
         }catch (SQLException e){
             LOGGER.error("Failed updating message log", e);
-        } finally {
-            if(con!=null){
-                try{con.close();}
-                catch (Exception e){LOGGER.error(e);}
-            }
         }
     }
 
-    public List<T> loadNotifications(String listenerName, Status status, int max, int maxFailCount){
-        String sql = "SELECT notification, failCount FROM \"" + tablePrefix + listenerName
-                + "\" WHERE status=? "
-                + (maxFailCount<=0?"": " and failCount <= ?"); //conditional criterion
+    private void updateRetryAt(final String listenerName, final Message message, final long retryAt){
+        try {
+            execute(new Work<Void>() {
+                public Void run(StatementCache cache) throws SQLException {
+                    PreparedStatement pstmt = cache.prepare(statementsFor(listenerName).markRetryAt);
+                    pstmt.setLong(1, retryAt);
+                    pstmt.setInt(2, message.getId());
+                    pstmt.executeUpdate();
+                    return null;
+                }
+            });
+        }catch (SQLException e){
+            LOGGER.error("Failed updating retry time of " + message, e);
+        }
+    }
 
-        Connection con = null;
+    /**
+     * Loads up to max notifications with the given status, in id order. Successive calls for failed notifications page
+     * through them, continuing after the last id returned by the previous call and wrapping around at the end, so that
+     * retries work through the whole backlog. Other statuses are always read from the first id.
+     * @param listenerName
+     * @param status
+     * @param max
+     * @param maxFailCount
+     * @return
+     */
+    public List<T> loadNotifications(final String listenerName, final Status status, final int max, final int maxFailCount){
+        final boolean paging = status == Status.FAILED;
+        Long cursor = paging? cursors.get(listenerName): null;
+        final long after = cursor == null? FIRST: cursor;
+        flush();
         List<T> notifications = new ArrayList<T>();
         try {
-            con = dataSource.getConnection();
-            PreparedStatement pstmt = con.prepareStatement(sql);
-            pstmt.setString(1, status.toString());
-            if(maxFailCount>0)
-                pstmt.setInt(2, maxFailCount);
-            pstmt.setFetchSize(max);
-            ResultSet resultSet = pstmt.executeQuery();
-            int count=0;
-            while (resultSet.next() && ++count<=max){
-                try{
-                    T notification = deserialise(resultSet.getBytes(1));
-                    notification.setFailCount(resultSet.getInt(2));
-                    notifications.add(notification);
-                    count++;
-                }catch (Exception e){
-                    LOGGER.warn("Failed deserialising notification" , e);
+            List<Row> rows = execute(new Work<List<Row>>() {
+                public List<Row> run(StatementCache cache) throws SQLException {
+                    List<Row> rows = loadPage(cache, listenerName, status, after, Integer.MAX_VALUE, max, maxFailCount);
+                    if(rows.size() < max && after != FIRST) //reached the end, continue from the start
+                        rows.addAll(loadPage(cache, listenerName, status, FIRST, (int) after, max - rows.size(), maxFailCount));
+                    if(paging) cursors.put(listenerName, rows.size() < max? FIRST: (long) rows.get(rows.size() - 1).id);
+                    return claiming(status)? claim(cache, listenerName, rows): rows;
                 }
+            });
+            for(Row row : rows){
+                T notification = row.notification();
+                if(notification!=null) notifications.add(notification);
             }
         }catch (SQLException e){
-            LOGGER.error("Failed updating notification log", e);
-        } finally {
-            if(con!=null){
-                try{con.close();}
-                catch (Exception e){LOGGER.error(e);}
-            }
+            LOGGER.error("Failed loading notification log", e);
         }
         return notifications;
     }
 
-    private void markStalledAsFailed(String listenerName){
-        String sql = "UPDATE \"" + tablePrefix + listenerName + "\" SET status=? WHERE status=?";
-        Connection con = null;
+    public int streamFailedMessages(String listenerName, int maxFailCount, MessageHandler<T> handler) {
+        return streamNotifications(listenerName, Status.FAILED, maxFailCount, handler);
+    }
+
+    public int streamInProcessMessages(String listenerName, MessageHandler<T> handler) {
+        return streamNotifications(listenerName, Status.PROCESSING, 0, handler);
+    }
+
+    public int streamRetrySchedule(final String listenerName, final RetryScheduleHandler handler) {
+        flush();
+        final int[] count = {0};
+        final long[] after = {FIRST}; //kept across a retry on a new connection, so no row is handled twice
         try {
-            con = dataSource.getConnection();
-            PreparedStatement pstmt = con.prepareStatement(sql);
-            pstmt.setString(1, Status.FAILED.name());
-            pstmt.setString(2, Status.PROCESSING.name());
-            pstmt.executeUpdate();
+            execute(new Work<Void>() {
+                public Void run(StatementCache cache) throws SQLException {
+                    PreparedStatement pstmt = cache.prepare(statementsFor(listenerName).selectSchedulePage);
+                    int rows = streamPageSize;
+                    while(rows == streamPageSize){
+                        pstmt.setString(1, Status.FAILED.name());
+                        pstmt.setLong(2, after[0]);
+                        pstmt.setInt(3, streamPageSize);
+                        ResultSet resultSet = pstmt.executeQuery();
+                        try {
+                            for(rows = 0; resultSet.next(); rows++){
+                                int id = resultSet.getInt(1);
+                                after[0] = id;
+                                count[0]++;
+                                if(!handler.handle(id, resultSet.getInt(2), resultSet.getLong(3))) return null;
+                            }
+                        } finally {
+                            resultSet.close();
+                        }
+                    }
+                    return null;
+                }
+            });
+        }catch (SQLException e){
+            LOGGER.error("Failed streaming retry schedule", e);
+        }
+        return count[0];
+    }
+
+    /**
+     * Streams the notifications with the given status in id order, reading streamPageSize rows at a time. Each page is
+     * read in full and its connection released before the handler is called, so handlers may log through this logger
+     * even when the pool has a single connection.
+     * @return the number of notifications handled
+     */
+    private int streamNotifications(final String listenerName, final Status status, final int maxFailCount, MessageHandler<T> handler){
+        flush();
+        int count = 0;
+        long after = FIRST;
+        while(true){
+            final long[] page = {after, 0}; //in: the id to read after, out: the last id and the number of rows read
+            List<Row> rows;
+            try {
+                rows = execute(new Work<List<Row>>() {
+                    public List<Row> run(StatementCache cache) throws SQLException {
+                        List<Row> rows = loadPage(cache, listenerName, status, page[0], Integer.MAX_VALUE, streamPageSize, maxFailCount);
+                        long last = rows.isEmpty()? page[0]: rows.get(rows.size() - 1).id;
+                        List<Row> claimed = claiming(status)? claim(cache, listenerName, rows): rows;
+                        page[0] = last; //once claimed, so that a retry reads the same page
+                        page[1] = rows.size();
+                        return claimed;
+                    }
+                });
+            }catch (SQLException e){
+                LOGGER.error("Failed streaming notification log", e);
+                return count;
+            }
+            after = page[0];
+            for(Row row : rows){
+                T notification = row.notification();
+                if(notification == null) continue;
+                count++;
+                if(!handler.handle(notification)) return count;
+            }
+            if(page[1] < streamPageSize) return count;
+        }
+    }
+
+    /**
+     * Loads up to limit rows with ids in (after, upTo], leaving them serialised
+     */
+    private List<Row> loadPage(StatementCache cache, String listenerName, Status status, long after, int upTo, int limit,
+                               int maxFailCount) throws SQLException {
+        List<Row> rows = new ArrayList<Row>();
+        if(limit <= 0) return rows;
+        LogStatements sql = statementsFor(listenerName);
+        boolean claimable = claiming(status); //skip rows leased to other nodes
+        PreparedStatement pstmt = cache.prepare(claimable? (maxFailCount<=0? sql.selectClaimablePage: sql.selectClaimablePageByFailCount)
+                : (maxFailCount<=0? sql.selectPage: sql.selectPageByFailCount)); //conditional criterion
+        int index = 1;
+        pstmt.setString(index++, status.toString());
+        pstmt.setLong(index++, after);
+        pstmt.setInt(index++, upTo);
+        if(claimable){
+            pstmt.setString(index++, nodeId);
+            pstmt.setLong(index++, System.currentTimeMillis());
+        }
+        if(maxFailCount>0)
+            pstmt.setInt(index++, maxFailCount);
+        pstmt.setInt(index, limit);
+        pstmt.setFetchSize(limit);
+        ResultSet resultSet = pstmt.executeQuery();
+        while (resultSet.next()){
+            rows.add(new Row(resultSet.getInt(1), resultSet.getBytes(2), resultSet.getInt(3)));
+        }
+        resultSet.close();
+        return rows;
+    }
+
+    /**
+     * A logged notification, deserialised on demand
+     */
+    private class Row {
+        final int id;
+        final byte[] data;
+        final int failCount;
+
+        Row(int id, byte[] data, int failCount) {
+            this.id = id;
+            this.data = data;
+            this.failCount = failCount;
+        }
+
+        T notification(){
+            try{
+                T notification = deserialise(data);
+                notification.setFailCount(failCount);
+                return notification;
+            }catch (Exception e){
+                LOGGER.warn("Failed deserialising notification " + id, e);
+                return null;
+            }
+        }
+    }
+
+    private boolean claiming(Status status){
+        return nodeId!=null && status==Status.FAILED;
+    }
+
+    /**
+     * Claims failed rows for this node, unless they are leased to another node
+     * @return the rows claimed
+     */
+    private List<Row> claim(StatementCache cache, String listenerName, List<Row> rows) throws SQLException {
+        if(rows.isEmpty()) return rows;
+        PreparedStatement pstmt = cache.prepare(statementsFor(listenerName).claim);
+        long now = System.currentTimeMillis();
+        for(Row row : rows){
+            bindClaim(pstmt, row.id, now);
+            pstmt.addBatch();
+        }
+        int[] counts = pstmt.executeBatch();
+        List<Row> claimed = new ArrayList<Row>(rows.size());
+        for(int i = 0; i < rows.size(); i++){
+            if(counts[i] > 0) claimed.add(rows.get(i));
+        }
+        if(claimed.size() < rows.size())
+            LOGGER.debug((rows.size() - claimed.size()) + " failed messages of " + listenerName + " claimed by other nodes");
+        return claimed;
+    }
+
+    private boolean claim(final String listenerName, final int id){
+        try {
+            return execute(new Work<Boolean>() {
+                public Boolean run(StatementCache cache) throws SQLException {
+                    PreparedStatement pstmt = cache.prepare(statementsFor(listenerName).claim);
+                    bindClaim(pstmt, id, System.currentTimeMillis());
+                    return pstmt.executeUpdate() > 0;
+                }
+            });
+        }catch (SQLException e){
+            LOGGER.error("Failed claiming failed message " + id, e);
+            return false;
+        }
+    }
+
+    private void bindClaim(PreparedStatement pstmt, int id, long now) throws SQLException {
+        pstmt.setString(1, nodeId);
+        pstmt.setLong(2, now + leaseMillis);
+        pstmt.setInt(3, id);
+        pstmt.setString(4, Status.FAILED.name());
+        pstmt.setString(5, nodeId);
+        pstmt.setLong(6, now);
+    }
+
+    /**
+     * Marks as failed the in-process rows whose lease expired and, on register, the ones left by a previous run of
+     * this node
+     */
+    private void releaseStalled(String listenerName, final boolean owned){
+        final LogStatements sql = statementsFor(listenerName);
+        try {
+            int count = execute(new Work<Integer>() {
+                public Integer run(StatementCache cache) throws SQLException {
+                    PreparedStatement pstmt = cache.prepare(sql.releaseExpired);
+                    pstmt.setString(1, Status.FAILED.name());
+                    pstmt.setString(2, Status.PROCESSING.name());
+                    pstmt.setLong(3, System.currentTimeMillis());
+                    int count = pstmt.executeUpdate();
+                    if(owned){
+                        pstmt = cache.prepare(sql.releaseOwned);
+                        pstmt.setString(1, Status.FAILED.name());
+                        pstmt.setString(2, Status.PROCESSING.name());
+                        pstmt.setString(3, nodeId);
+                        count += pstmt.executeUpdate();
+                    }
+                    return count;
+                }
+            });
+            if(count > 0) LOGGER.info("Marked " + count + " stalled notifications of " + listenerName + " as failed");
         }catch (SQLException e){
             LOGGER.error("Failed marking stalled notifications as failed", e);
-        } finally {
-            if(con!=null){
-                try{con.close();}
-                catch (Exception e){LOGGER.error(e);}
+        }
+    }
+
+    /**
+     * Renews the leases of the in-process rows of this node
+     */
+    private void renewLeases(final String listenerName){
+        try {
+            execute(new Work<Void>() {
+                public Void run(StatementCache cache) throws SQLException {
+                    PreparedStatement pstmt = cache.prepare(statementsFor(listenerName).renewLeases);
+                    pstmt.setLong(1, System.currentTimeMillis() + leaseMillis);
+                    pstmt.setString(2, nodeId);
+                    pstmt.setString(3, Status.PROCESSING.name());
+                    pstmt.executeUpdate();
+                    return null;
+                }
+            });
+        }catch (SQLException e){
+            LOGGER.error("Failed renewing leases of " + listenerName, e);
+        }
+    }
+
+    /**
+     * Starts renewing the leases of this node and releasing the expired ones, every third of the lease time
+     */
+    private synchronized void startLeaseTimer(){
+        if(leaseTimer != null) return;
+        leaseTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DbMessageLogger-leases");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1, leaseMillis / 3);
+        leaseTimer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                //an exception would cancel the timer for good, and the rows of this node would be taken over
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Failed flushing message logs before renewing leases", e);
+                }
+                for(String listenerName : listeners){
+                    try {
+                        renewLeases(listenerName);
+                        releaseStalled(listenerName, false);
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Failed renewing leases of " + listenerName, e);
+                    }
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void markStalledAsFailed(final String listenerName){
+        try {
+            execute(new Work<Void>() {
+                public Void run(StatementCache cache) throws SQLException {
+                    PreparedStatement pstmt = cache.prepare(statementsFor(listenerName).markStalled);
+                    pstmt.setString(1, Status.FAILED.name());
+                    pstmt.setString(2, Status.PROCESSING.name());
+                    pstmt.executeUpdate();
+                    return null;
+                }
+            });
+        }catch (SQLException e){
+            LOGGER.error("Failed marking stalled notifications as failed", e);
+        }
+    }
+
+    private void enqueue(WriteBehindWriter writer, String listenerName, Message message, Kind kind){
+        writer.enqueue(new LogEvent(listenerName, message, kind, writeMode == WriteMode.FLUSHED));
+    }
+
+    private synchronized void startWriter(){
+        if(writeMode == WriteMode.SYNC || writer != null) return;
+        writer = new WriteBehindWriter(new WriteBehindWriter.BatchWriter() {
+            public void write(List<List<LogEvent>> rounds) throws SQLException {
+                writeBatch(rounds);
+            }
+        }, queueCapacity, flushSize, lingerMillis, "DbMessageLogger-writer");
+    }
+
+    /**
+     * Writes queued log events in a single transaction, sending one JDBC batch per listener and statement in each round.
+     * Called only by the background writer, which keeps its connection and statements open between flushes.
+     * @param rounds
+     * @throws SQLException
+     */
+    private void writeBatch(List<List<LogEvent>> rounds) throws SQLException {
+        if(writerStatements == null)
+            writerStatements = new StatementCache(dataSource.getConnection());
+        Connection con = writerStatements.getConnection();
+        try {
+            con.setAutoCommit(false);
+            for(List<LogEvent> round : rounds){
+                Set<PreparedStatement> batches = new LinkedHashSet<PreparedStatement>();
+                for(LogEvent event : round){
+                    LogStatements sql = statementsFor(event.listenerName);
+                    PreparedStatement pstmt;
+                    switch (event.kind){
+                        case PROCESSING:
+                        case SPILLED:
+                            pstmt = writerStatements.prepare(sql.upsert);
+                            MessageBuffer data = serializer.serialise(event.message);
+                            try {
+                                bindUpsert(pstmt, event.message, data, false, //the buffer is reused before the batch executes
+                                        event.kind == Kind.SPILLED? Status.FAILED: Status.PROCESSING);
+                            } finally {
+                                data.release();
+                            }
+                            break;
+                        case COMPLETED:
+                            pstmt = writerStatements.prepare(sql.delete);
+                            pstmt.setInt(1, event.message.getId());
+                            break;
+                        case RETRY:
+                            pstmt = writerStatements.prepare(sql.markRetryAt);
+                            pstmt.setLong(1, event.retryAt);
+                            pstmt.setInt(2, event.message.getId());
+                            break;
+                        default:
+                            Status status = event.kind == Kind.FAILED? Status.FAILED: Status.INVALID;
+                            pstmt = writerStatements.prepare(status == Status.FAILED? markFailed(sql): sql.markInvalid);
+                            pstmt.setString(1, status.name());
+                            pstmt.setInt(2, event.message.getId());
+                    }
+                    pstmt.addBatch();
+                    batches.add(pstmt);
+                }
+                for(PreparedStatement pstmt : batches){
+                    pstmt.executeBatch();
+                }
             }
+            con.commit();
+        } catch (SQLException e) {
+            try{con.rollback();}
+            catch (Exception ex){LOGGER.error(ex);}
+            writerStatements.close();
+            writerStatements = null;
+            throw e;
         }
     }
 
-    private byte[] serialise(Message message){
-        //kryo.register(message.getClass());
-        ByteBuffer buffer = ByteBuffer.allocate(bufferCapacity);
-        kryo.writeClassAndObject(buffer, message);
-        byte[] result = new byte[buffer.flip().limit()];
-        buffer.get(result);
-        return result;
+    /**
+     * Waits until the queued log events have been written. Does nothing in {@link WriteMode#SYNC} mode.
+     * @throws LogWriteException if some queued events couldn't be written
+     */
+    public void flush(){
+        WriteBehindWriter writer = this.writer;
+        if(writer!=null) writer.flush();
+    }
+
+    /**
+     * Writes any queued log events and stops the background writer
+     */
+    public synchronized void destroy(){
+        if(leaseTimer!=null){
+            leaseTimer.shutdownNow();
+            leaseTimer = null;
+        }
+        if(writer!=null){
+            writer.close();
+            writer = null;
+        }
+        if(writerStatements!=null){
+            writerStatements.close();
+            writerStatements = null;
+        }
+        BlockingQueue<StatementCache> idleStatements = this.idleStatements;
+        StatementCache idle;
+        while(idleStatements != null && (idle = idleStatements.poll()) != null){
+            idle.close();
+        }
     }
 
     private T deserialise(byte[] data){
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-        T notification = (T) kryo.readClassAndObject(buffer);
-        return notification;
+        return serializer.<T>deserialise(data);
     }
 
     public DataSource getDataSource() {
@@ -295,7 +927,149 @@ public class DbMessageLogger<T extends Message> implements MessageLogger<T> {
         this.tablePrefix = tablePrefix;
     }
 
+    /**
+     * Sets the initial serialisation buffer size of the default serializer. Buffers grow on demand.
+     * @param bufferCapacity
+     * @deprecated configure the {@link KryoMessageSerializer} instead
+     */
+    @Deprecated
     public void setBufferCapacity(int bufferCapacity) {
-        this.bufferCapacity = bufferCapacity;
+        if(serializer instanceof KryoMessageSerializer)
+            ((KryoMessageSerializer) serializer).setInitialBufferSize(bufferCapacity);
+    }
+
+    public MessageSerializer getSerializer() {
+        return serializer;
+    }
+
+    public void setSerializer(MessageSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    public boolean isBinaryStreams() {
+        return binaryStreams;
+    }
+
+    /**
+     * Whether serialised messages are passed to the JDBC driver as streams over the serializer's buffer, avoiding
+     * a copy. Disable for drivers that don't support {@link PreparedStatement#setBinaryStream(int, java.io.InputStream, int)}.
+     * Batched writes always pass a copy.
+     * @param binaryStreams
+     */
+    public void setBinaryStreams(boolean binaryStreams) {
+        this.binaryStreams = binaryStreams;
+    }
+
+    public String getNotificationType() {
+        return notificationType;
+    }
+
+    /**
+     * Sets the SQL type of the column holding the serialised messages (default BLOB). It must fit the largest message
+     * the serializer produces. Tables created with the former VARBINARY(100000) column are altered to this type
+     * on {@link #register(String)}.
+     * @param notificationType
+     */
+    public void setNotificationType(String notificationType) {
+        this.notificationType = notificationType;
+    }
+
+    public String getUpsertTemplate() {
+        return upsertTemplate;
+    }
+
+    /**
+     * Sets the statement used to log messages as PROCESSING, for databases not supporting H2's MERGE syntax.
+     * The template takes the quoted table name as argument (%s), followed by the id, notification, status, owner and
+     * leaseExpiry parameters.
+     * @param upsertTemplate
+     */
+    public void setUpsertTemplate(String upsertTemplate) {
+        this.upsertTemplate = upsertTemplate;
+    }
+
+    public int getStreamPageSize() {
+        return streamPageSize;
+    }
+
+    /**
+     * Sets the number of rows read at a time when streaming notifications
+     * @param streamPageSize
+     */
+    public void setStreamPageSize(int streamPageSize) {
+        this.streamPageSize = streamPageSize;
+    }
+
+    public WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    public void setWriteMode(WriteMode writeMode) {
+        this.writeMode = writeMode;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getFlushSize() {
+        return flushSize;
+    }
+
+    public void setFlushSize(int flushSize) {
+        this.flushSize = flushSize;
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    /**
+     * Sets the number of connections kept open between log calls in {@link WriteMode#SYNC} mode, so that their
+     * prepared statements are reused (default 0, the connection is closed after each call). Use it only with a
+     * DataSource that doesn't pool connections or cache statements itself.
+     * @param maxIdleConnections
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = maxIdleConnections;
+        this.idleStatements = maxIdleConnections > 0? new LinkedBlockingQueue<StatementCache>(maxIdleConnections): null;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Sets the id of this node, unique among the nodes sharing the log tables, to claim rows instead of processing
+     * them on every node (default null, a single node)
+     * @param nodeId
+     */
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * Sets the millis rows are leased to the node that logged or claimed them (default 5 minutes). Leases of
+     * in-process rows are renewed every third of this time while the node is alive.
+     * @param leaseMillis
+     */
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    public long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    public void setLingerMillis(long lingerMillis) {
+        this.lingerMillis = lingerMillis;
     }
 }
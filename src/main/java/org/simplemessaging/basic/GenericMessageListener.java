@@ -1,12 +1,26 @@
 package org.simplemessaging.basic;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.apache.log4j.Logger;
 import org.simplemessaging.*;
 import org.simplemessaging.util.AbstractSmartLifeCycle;
+import org.simplemessaging.util.PriorityLaneExecutor;
+import org.simplemessaging.util.StripedExecutor;
+import org.simplemessaging.util.ThrottledExecutor;
+import org.simplemessaging.util.VirtualThreadExecutor;
 import org.springframework.core.task.TaskExecutor;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 /**
  * Generic implementation of notification listener that supports concurrent processing.
@@ -31,6 +45,79 @@ public class GenericMessageListener<T extends Message> extends AbstractSmartLife
 
     protected int maxRetrySingle=0; //max retries of unitary notifications before marking as invalid. 0 means unlimited
 
+    protected boolean bisect=false; //split failing composite notifications in halves instead of unitary notifications
+
+    /**
+     * What to do with a message part when the processing queue is full
+     */
+    public enum OverflowPolicy{
+        /** wait until there is capacity, which slows down the caller (e.g. a fetcher) to the processing rate */
+        BLOCK,
+        /** reject the whole message with a {@link ProcessorUnavailableException} */
+        FAIL,
+        /** log the part as failed, to be resubmitted by a later retry */
+        SPILL
+    }
+
+    protected int maxQueuedParts=0; //max # of parts queued or being processed. 0 means unlimited
+
+    protected OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    protected int partsPerBatch = 10; //max # of parts per call to a BatchMessageProcessor
+
+    protected AdaptiveBatchSizer batchSizer; //adjusts the partition size when set, instead of processingBatchSize
+
+    protected RetryScheduler<T> retryScheduler; //resubmits failed messages with backoff when set
+
+    protected CircuitBreaker circuitBreaker; //caches the processor availability and rejects messages while it's failing
+
+    protected int stripes=0; //# of lanes running parts with the same routing key in order. 0 means unordered
+
+    protected int dedupCapacity=0; //# of recent part ids remembered to skip duplicates. 0 means no dedup
+
+    protected long dedupTtl=0; //millis a part id is remembered. 0 means until evicted by newer ids
+
+    private volatile Semaphore queueCapacity;
+
+    private volatile RecentIdCache recentIds;
+
+    protected int maxConcurrent=0; //max # of tasks of this listener running at once. 0 means unlimited
+
+    protected double maxRate=0; //max # of tasks of this listener started per second. 0 means unlimited
+
+    protected double rateBurst=0; //max # of tasks started at once after an idle period. 0 means maxRate
+
+    protected boolean virtualThreads=false; //run each part on a virtual thread instead of the task executor
+
+    protected int maxVirtualThreads=1000; //max # of parts processed at once on virtual threads. 0 means unlimited
+
+    protected int maxOutstanding=0; //max # of parts in process by an AsyncMessageProcessor. 0 means unlimited
+
+    protected int priorityWorkers=0; //# of tasks passed on to the executor at once, by priority. 0 means FIFO
+
+    protected Map<Priority, Integer> priorityWeights = defaultPriorityWeights(); //share of the workers of each lane
+
+    private volatile StripedExecutor stripedExecutor;
+
+    private volatile PriorityLaneExecutor priorityExecutor;
+
+    private volatile Semaphore outstanding;
+
+    private volatile ThrottledExecutor throttledExecutor;
+
+    private volatile Executor executor; //task executor, throttled if there are limits
+
+    private volatile Executor completionExecutor; //unthrottled task executor, logging the outcome of async parts
+
+    private volatile Run currentRun = new Run(); //token of the current start, captured by the dispatched parts
+
+    /**
+     * A start of this listener. Parts dispatched in a previous run, or in an abandoned one, are not processed.
+     */
+    private static class Run {
+        volatile boolean abandoned; //stopped before draining
+    }
+
 	/**
 	 * Receives a message and submits to the processor
 	 * @param message
@@ -38,58 +125,327 @@ public class GenericMessageListener<T extends Message> extends AbstractSmartLife
 	 * @throws ProcessorUnavailableException 
 	 */
 	public void receive(T message) throws ListenerNotRunningException, ProcessorUnavailableException{
+        Priority priority = message instanceof PrioritizedMessage? ((PrioritizedMessage) message).getPriority(): null;
+        receive(message, priority==null? Priority.LIVE: priority);
+    }
+
+    /**
+     * Receives a message and submits to the processor in the given priority lane
+     * @param message
+     * @param priority
+     * @throws ListenerNotRunningException
+     * @throws ProcessorUnavailableException
+     */
+    public void receive(T message, Priority priority) throws ListenerNotRunningException, ProcessorUnavailableException{
         if(!this.isRunning() || ! this.isEnabled()){
             throw new ListenerNotRunningException("This listener has not started yet or it has been disabled.");
         }
-        if(!messageProcessor.isAvailable()){
+        if(circuitBreaker!=null? !circuitBreaker.isAvailable(messageProcessor): !messageProcessor.isAvailable()){
         	throw new ProcessorUnavailableException("The message processor " + messageProcessor + " is unavailable.");
         }
-        List<T> parts = message.partition(processingBatchSize);
+        List<T> parts = message.partition(batchSizer==null? processingBatchSize: batchSizer.getBatchSize());
+        Semaphore capacity = queueCapacity;
+        boolean reserved = capacity!=null && overflowPolicy==OverflowPolicy.FAIL;
+        if(reserved && !capacity.tryAcquire(parts.size())){
+            throw new ProcessorUnavailableException("The processing queue of listener " + listenerId + " is full.");
+        }
+        int batchSize = messageProcessor instanceof BatchMessageProcessor? partsPerBatch: 1;
+        StripedExecutor striped = stripedExecutor;
+        List<T> batch = new ArrayList<T>(batchSize);
+        int batchLane = -1;
+        RecentIdCache recent = recentIds;
 		for(final T part: parts){
-			
+            if(recent!=null && !recent.add(part.getId(), System.currentTimeMillis())){
+                logger.debug("Skipping duplicate of message in process or recently processed:" + part);
+                if(reserved) capacity.release();
+                continue;
+            }
+            if(!reserved){
+                boolean accepted;
+                try {
+                    accepted = reserve(capacity, part);
+                } catch (ProcessorUnavailableException e) {
+                    if(recent!=null) recent.remove(part.getId());
+                    if(!batch.isEmpty()) dispatch(batch, capacity, priority); //already logged and reserved
+                    throw e;
+                }
+                if(!accepted) continue;
+            }
+
 			messageLogger.logProcessing(listenerId, part);
 			
-        	taskExecutor.execute(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						logger.debug("Processing message:" + part);
-						messageProcessor.process(part);
-						messageLogger.logCompleted(listenerId, part);
-					} catch (FailedProcessingException e) {
-						logger.error("Failed processing message:" + part,  e);
-						messageLogger.logFailed(listenerId, part, e);
-					} catch (Exception e){
-						logger.error("Failed processing message:" + part,  e);
-						messageLogger.logInvalid(listenerId, part, e);
-					}
-				}
-			});
+            Object key = routingKey(part);
+            int lane = striped==null || key==null? -1: striped.laneOf(key);
+            if(!batch.isEmpty() && lane!=batchLane){
+                dispatch(batch, capacity, priority);
+                batch = new ArrayList<T>(batchSize);
+            }
+            batch.add(part);
+            batchLane = lane;
+            if(batch.size() >= batchSize){
+                dispatch(batch, capacity, priority);
+                batch = new ArrayList<T>(batchSize);
+            }
         }
+        if(!batch.isEmpty()) dispatch(batch, capacity, priority);
 	}
 
     /**
-     * Resubmits failed messages for reprocessing (this may method may be called periodically by some external scheduling service)
+     * Reserves queue capacity for a part. Depending on the overflow policy, this waits for capacity or spills the part
+     * to the message logger as failed, without counting a failed attempt, so that it's resubmitted by the next retry.
+     * @return true if the part can be dispatched
+     * @throws ProcessorUnavailableException if interrupted while waiting for capacity
+     */
+    private boolean reserve(Semaphore capacity, T part) throws ProcessorUnavailableException {
+        if(capacity==null) return true;
+        if(overflowPolicy==OverflowPolicy.BLOCK){
+            try {
+                capacity.acquire();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessorUnavailableException("Interrupted waiting for the processing queue of listener " + listenerId);
+            }
+        }
+        if(capacity.tryAcquire()) return true;
+        logger.debug("Processing queue full, spilling message:" + part);
+        RecentIdCache recent = recentIds;
+        if(recent!=null) recent.remove(part.getId()); //so that it can be retried
+        messageLogger.logSpilled(listenerId, part);
+        if(retryScheduler!=null) retryScheduler.schedule(part);
+        return false;
+    }
+
+    /**
+     * Submits a task processing the given parts, one part unless the processor is a {@link BatchMessageProcessor}.
+     * When striping, the task runs in the lane of the routing key of the parts, which share the same lane. Otherwise,
+     * with priority workers, it runs in the lane of the given priority.
+     */
+    private void dispatch(final List<T> parts, final Semaphore capacity, Priority priority){
+        beginWork(parts.size());
+        final Run run = currentRun;
+        StripedExecutor striped = stripedExecutor;
+        PriorityLaneExecutor prioritized = priorityExecutor;
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                if(run.abandoned || run != currentRun){
+                    logger.debug("Listener stopped, leaving " + parts.size() + " queued parts in process");
+                    release(capacity, parts.size(), run);
+                    return;
+                }
+                if(parts.size()==1 && messageProcessor instanceof AsyncMessageProcessor
+                        && !(messageProcessor instanceof BatchMessageProcessor)){
+                    processAsync(parts.get(0), new Runnable() {
+                        public void run() {
+                            release(capacity, 1, run);
+                        }
+                    });
+                    return;
+                }
+                try {
+                    if(parts.size()==1 && !(messageProcessor instanceof BatchMessageProcessor))
+                        process(parts.get(0));
+                    else
+                        processBatch(parts);
+                } finally {
+                    release(capacity, parts.size(), run);
+                }
+            }
+        };
+        try {
+            if(striped!=null) striped.execute(routingKey(parts.get(0)), task);
+            else if(prioritized!=null) prioritized.execute(priority.ordinal(), task);
+            else executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            release(capacity, parts.size(), run);
+            for(T part: parts){
+                logger.error("Processing rejected for message:" + part, e);
+                logFailed(part, e);
+            }
+        }
+    }
+
+    private Object routingKey(T part){
+        return part instanceof KeyedMessage? ((KeyedMessage) part).getRoutingKey(): null;
+    }
+
+    private static Map<Priority, Integer> defaultPriorityWeights(){
+        Map<Priority, Integer> weights = new EnumMap<Priority, Integer>(Priority.class);
+        weights.put(Priority.LIVE, 6);
+        weights.put(Priority.RETRY, 3);
+        weights.put(Priority.REPLAY, 1);
+        return weights;
+    }
+
+    /**
+     * Frees the capacity of completed (or abandoned) parts. Parts of a previous run are not counted anymore, as the work
+     * in flight is reset on start.
+     */
+    private void release(Semaphore capacity, int parts, Run run){
+        if(capacity!=null) capacity.release(parts);
+        if(run == currentRun) endWork(parts);
+    }
+
+    /**
+     * Processes a message part and logs the outcome
+     * @param part
+     */
+    protected void process(T part){
+        Exception outcome = null;
+        long start = System.nanoTime();
+        try {
+            logger.debug("Processing message:" + part);
+            messageProcessor.process(part);
+        } catch (Exception e){
+            outcome = e;
+        }
+        completed(part, outcome, start);
+    }
+
+    /**
+     * Starts processing a message part with the {@link AsyncMessageProcessor} and logs the outcome when it completes.
+     * Waits while there are maxOutstanding parts in process, which parks the calling executor thread. The outstanding
+     * permit is released by the thread completing the future, and the outcome is logged in the task executor, so the
+     * processor's threads don't run the logging and parked executor threads don't hold back completions.
+     * @param part
+     * @param done called after the outcome is logged
+     */
+    protected void processAsync(final T part, final Runnable done){
+        final Semaphore limit = outstanding;
+        final long start = System.nanoTime();
+        if(limit!=null){
+            try {
+                limit.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logFailed(part, new FailedProcessingException("Interrupted waiting to process message", e));
+                done.run();
+                return;
+            }
+        }
+        final ListenableFuture<?> future;
+        try {
+            logger.debug("Processing message:" + part);
+            future = ((AsyncMessageProcessor<T>) messageProcessor).processAsync(part);
+        } catch (Exception e) {
+            if(limit!=null) limit.release();
+            completed(part, e, start);
+            done.run();
+            return;
+        }
+        if(limit!=null){
+            future.addListener(new Runnable() {
+                public void run() {
+                    limit.release();
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+        final Executor completions = completionExecutor;
+        future.addListener(new Runnable() {
+            public void run() {
+                Exception outcome = null;
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    outcome = e.getCause() instanceof Exception? (Exception) e.getCause(): e;
+                } catch (CancellationException e) {
+                    outcome = new FailedProcessingException("Processing cancelled", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    outcome = new FailedProcessingException("Interrupted processing message", e);
+                }
+                try {
+                    completed(part, outcome, start);
+                } finally {
+                    done.run();
+                }
+            }
+        }, new Executor() {
+            public void execute(Runnable completion) {
+                try {
+                    completions.execute(completion);
+                } catch (RejectedExecutionException e) {
+                    completion.run(); //e.g. the executor was shut down, the outcome must be logged anyway
+                }
+            }
+        });
+    }
+
+    private void completed(T part, Exception outcome, long start){
+        if(batchSizer!=null) batchSizer.record(part.size(), System.nanoTime()-start, outcome instanceof FailedProcessingException);
+        logOutcome(part, outcome);
+    }
+
+    /**
+     * Processes a batch of message parts with a single call to the {@link BatchMessageProcessor} and logs the outcome
+     * of each part. Parts without an outcome in a short list are failed. A list longer than the batch can't be matched
+     * to the parts, so all of them are failed.
+     * @param parts
+     */
+    protected void processBatch(List<T> parts){
+        List<Exception> outcomes;
+        long start = System.nanoTime();
+        try {
+            logger.debug("Processing batch of " + parts.size() + " messages");
+            outcomes = ((BatchMessageProcessor<T>) messageProcessor).processBatch(parts);
+        } catch (Exception e) {
+            outcomes = Collections.nCopies(parts.size(), e);
+        }
+        Exception unmatched = null;
+        if(outcomes!=null && outcomes.size()!=parts.size()){
+            unmatched = new FailedProcessingException("The processor returned " + outcomes.size() + " outcomes for a batch of "
+                    + parts.size() + " parts");
+            logger.error(unmatched.getMessage());
+            if(outcomes.size() > parts.size()) outcomes = Collections.nCopies(parts.size(), unmatched);
+        }
+        long elapsed = (System.nanoTime()-start)/parts.size();
+        for(int i=0; i<parts.size(); i++){
+            Exception outcome = outcomes==null? null: i<outcomes.size()? outcomes.get(i): unmatched;
+            if(batchSizer!=null) batchSizer.record(parts.get(i).size(), elapsed, outcome instanceof FailedProcessingException);
+            logOutcome(parts.get(i), outcome);
+        }
+    }
+
+    /**
+     * Logs the processing outcome of a part: completed if there was no exception, failed on a
+     * {@link FailedProcessingException} and invalid otherwise
+     */
+    private void logOutcome(T part, Exception e){
+        if(circuitBreaker!=null) circuitBreaker.record(e instanceof FailedProcessingException);
+        if(e==null){
+            messageLogger.logCompleted(listenerId, part);
+        } else if(e instanceof FailedProcessingException){
+            logger.error("Failed processing message:" + part,  e);
+            logFailed(part, e);
+        } else {
+            logger.error("Failed processing message:" + part,  e);
+            messageLogger.logInvalid(listenerId, part, e);
+        }
+    }
+
+    /**
+     * Logs a part as failed and schedules its next attempt, if there's a retry scheduler
+     */
+    private void logFailed(T part, Exception e){
+        RecentIdCache recent = recentIds;
+        if(recent!=null) recent.remove(part.getId()); //so that it can be retried
+        messageLogger.logFailed(listenerId, part, e);
+        if(retryScheduler!=null) retryScheduler.schedule(part);
+    }
+
+    /**
+     * Resubmits failed messages for reprocessing (this may method may be called periodically by some external scheduling service).
+     * Not needed when a {@link RetryScheduler} is set.
      */
     public void retryFailedMessages(){
         if(!this.isRunning() || ! this.isEnabled()) return;
-        List<T> failedMessages = messageLogger.getFailedMessages(listenerId, 20, maxRetry);
+        List<T> failedMessages = messageLogger.getFailedMessages(listenerId, 20);
         if(!failedMessages.isEmpty()){
             logger.info("Reprocessing failed notifications:" + failedMessages.size());
             try {
                 for(T message: failedMessages){
-                    if(maxRetrySingle>0 && message.size()==1 && message.getFailCount()>maxRetrySingle){
-                        logger.info("Too many failed processing attempts  for message:" + message + ". Marking as invalid.");
-                        messageLogger.logInvalid(listenerId, message, new RetryExhaustionException("Failed too many attempts :" + message.getFailCount()));
-                    }else if(maxRetry>0 && message.size()>1 && message.getFailCount()>maxRetry){//partition it
-                        logger.info("Too many failed processing attempts  for message: " + message + ". Splitting into unitary notifications");
-                        messageLogger.logInvalid(listenerId, message, new RetryExhaustionException("Failed too many attempts :" + message.getFailCount()));
-                        for(Message part: message.partition(1)){
-                            receive((T)part);
-                        }
-                    } else {
-                        receive(message);
-                    }
+                    resubmit(message);
                 }
             } catch (Exception e) {
                 logger.error("Failed submitting notifications for reprocessing", e);
@@ -97,6 +453,64 @@ public class GenericMessageListener<T extends Message> extends AbstractSmartLife
         }
     }
 
+    /**
+     * Resubmits all the failed messages for reprocessing, streaming them from the message logger. Messages are read as
+     * fast as this listener accepts them, so the backlog is never loaded in memory at once.
+     * @return the number of messages resubmitted
+     */
+    public int recoverFailedMessages(){
+        if(!this.isRunning() || ! this.isEnabled()) return 0;
+        final int[] count = {0};
+        messageLogger.streamFailedMessages(listenerId, 0, new MessageHandler<T>() {
+            public boolean handle(T message) {
+                try {
+                    resubmit(message, Priority.REPLAY);
+                    count[0]++;
+                    return isRunning();
+                } catch (Exception e) {
+                    logger.error("Failed submitting notifications for reprocessing", e);
+                    return false;
+                }
+            }
+        });
+        logger.info("Resubmitted failed notifications:" + count[0]);
+        return count[0];
+    }
+
+    /**
+     * Resubmits a failed message, marking it as invalid or splitting it if it failed too many times
+     * @param message
+     * @throws ListenerNotRunningException
+     * @throws ProcessorUnavailableException
+     */
+    protected void resubmit(T message) throws ListenerNotRunningException, ProcessorUnavailableException {
+        resubmit(message, Priority.RETRY);
+    }
+
+    /**
+     * Resubmits a failed message in the given priority lane, marking it as invalid or splitting it if it failed too
+     * many times
+     * @param message
+     * @param priority
+     * @throws ListenerNotRunningException
+     * @throws ProcessorUnavailableException
+     */
+    protected void resubmit(T message, Priority priority) throws ListenerNotRunningException, ProcessorUnavailableException {
+        if(maxRetrySingle>0 && message.size()==1 && message.getFailCount()>maxRetrySingle){
+            logger.info("Too many failed processing attempts  for message:" + message + ". Marking as invalid.");
+            messageLogger.logInvalid(listenerId, message, new RetryExhaustionException("Failed too many attempts :" + message.getFailCount()));
+        }else if((bisect || maxRetry>0) && message.size()>1 && message.getFailCount()>maxRetry){//partition it
+            int size = bisect? (message.size()+1)/2: 1;
+            logger.info("Too many failed processing attempts  for message: " + message + ". Splitting into notifications of size " + size);
+            messageLogger.logInvalid(listenerId, message, new RetryExhaustionException("Failed too many attempts :" + message.getFailCount()));
+            for(Message part: message.partition(size)){
+                receive((T)part, priority);
+            }
+        } else {
+            receive(message, priority);
+        }
+    }
+
     @Override
     public int getPhase() {
         return Integer.MAX_VALUE-1;
@@ -104,9 +518,83 @@ public class GenericMessageListener<T extends Message> extends AbstractSmartLife
 
     @Override
     public void doStart() {
+        currentRun = new Run();
+        resetWork(); //parts of a previous run, left in process, are not waited for anymore
+        queueCapacity = maxQueuedParts>0? new Semaphore(maxQueuedParts): null;
+        Executor baseExecutor = virtualThreads? new VirtualThreadExecutor(maxVirtualThreads, "listener-" + listenerId): taskExecutor;
+        throttledExecutor = maxConcurrent>0 || maxRate>0? new ThrottledExecutor(baseExecutor, maxConcurrent, maxRate, rateBurst): null;
+        executor = throttledExecutor!=null? throttledExecutor: baseExecutor;
+        completionExecutor = baseExecutor;
+        stripedExecutor = stripes>0? new StripedExecutor(executor, stripes): null;
+        if(priorityWorkers>0){
+            int[] weights = new int[Priority.values().length];
+            for(Priority priority: Priority.values()){
+                Integer weight = priorityWeights.get(priority);
+                weights[priority.ordinal()] = weight==null? 1: weight;
+            }
+            priorityExecutor = new PriorityLaneExecutor(executor, priorityWorkers, weights);
+        }else{
+            priorityExecutor = null;
+        }
+        if(stripedExecutor!=null && throttledExecutor!=null) stripedExecutor.setMaxRunsPerTurn(1); //so that each task is throttled
+        outstanding = maxOutstanding>0? new Semaphore(maxOutstanding): null;
+        recentIds = dedupCapacity>0? new RecentIdCache(dedupCapacity, dedupTtl): null;
         messageLogger.register(listenerId);
     }
 
+    /**
+     * Starts the retry scheduler once this listener is running, so that the retries due right away are accepted
+     */
+    @Override
+    public void start() {
+        super.start();
+        if(isEnabled() && retryScheduler!=null) retryScheduler.start(this);
+    }
+
+    /**
+     * Parts still queued after the drain timeout are left logged as in process, without being processed, so that they
+     * are marked as stalled and retried on the next start. Parts being processed complete normally.
+     */
+    @Override
+    protected void doCheckpoint() {
+        logger.info("Listener " + listenerId + " stopped with " + getInFlight() + " parts in flight");
+        currentRun.abandoned = true;
+    }
+
+    @Override
+    protected void doStop() {
+        if(retryScheduler!=null) retryScheduler.stop();
+        if(throttledExecutor!=null){
+            currentRun.abandoned = true; //so that the dropped tasks only free their capacity
+            List<Runnable> dropped = throttledExecutor.shutdown();
+            if(!dropped.isEmpty()) logger.info("Listener " + listenerId + " dropped " + dropped.size() + " throttled tasks, left in process");
+            for(Runnable task: dropped){
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Failed releasing dropped task " + task, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of message parts queued or being processed
+     * @return
+     */
+    public int getQueueDepth() {
+        return getInFlight();
+    }
+
+    /**
+     * Number of message parts that can be accepted without overflowing the processing queue
+     * @return
+     */
+    public int getRemainingCapacity() {
+        Semaphore capacity = queueCapacity;
+        return capacity==null? Integer.MAX_VALUE: capacity.availablePermits();
+    }
+
     public Executor getTaskExecutor() {
         return taskExecutor;
     }
@@ -127,6 +615,19 @@ public class GenericMessageListener<T extends Message> extends AbstractSmartLife
         this.processingBatchSize = processingBatchSize;
     }
 
+    public AdaptiveBatchSizer getBatchSizer() {
+        return batchSizer;
+    }
+
+    /**
+     * Sets the sizer that adapts the partition size to the processing latency, throughput and failures. When set,
+     * processingBatchSize is ignored.
+     * @param batchSizer
+     */
+    public void setBatchSizer(AdaptiveBatchSizer batchSizer) {
+        this.batchSizer = batchSizer;
+    }
+
     public MessageLogger<T> getMessageLogger() {
         return messageLogger;
     }
@@ -159,6 +660,226 @@ public class GenericMessageListener<T extends Message> extends AbstractSmartLife
         this.maxRetry = maxRetry;
     }
 
+    public int getMaxQueuedParts() {
+        return maxQueuedParts;
+    }
+
+    /**
+     * Sets the max number of message parts queued or being processed, 0 (default) means unlimited. This should not
+     * be lower than the number of parts of a message when using {@link OverflowPolicy#FAIL}.
+     * @param maxQueuedParts
+     */
+    public void setMaxQueuedParts(int maxQueuedParts) {
+        this.maxQueuedParts = maxQueuedParts;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public int getPartsPerBatch() {
+        return partsPerBatch;
+    }
+
+    /**
+     * Sets the max number of message parts passed to each call of a {@link BatchMessageProcessor}. Ignored by other
+     * processors.
+     * @param partsPerBatch
+     */
+    public void setPartsPerBatch(int partsPerBatch) {
+        this.partsPerBatch = partsPerBatch;
+    }
+
+    public RetryScheduler<T> getRetryScheduler() {
+        return retryScheduler;
+    }
+
+    /**
+     * Sets the scheduler that resubmits failed messages with exponential backoff, instead of calling
+     * {@link #retryFailedMessages()} periodically
+     * @param retryScheduler
+     */
+    public void setRetryScheduler(RetryScheduler<T> retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Sets the max number of processing tasks of this listener running at once, regardless of the size of the task
+     * executor. Tasks over the limit wait in the listener's queue (see {@link #setMaxQueuedParts(int)}) instead of
+     * failing. 0 (default) means unlimited.
+     * @param maxConcurrent
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * Sets the max number of processing tasks (i.e. processor calls) started per second. Tasks over the rate wait in
+     * the listener's queue instead of failing. 0 (default) means unlimited.
+     * @param maxRate
+     */
+    public void setMaxRate(double maxRate) {
+        this.maxRate = maxRate;
+    }
+
+    public double getRateBurst() {
+        return rateBurst;
+    }
+
+    public void setRateBurst(double rateBurst) {
+        this.rateBurst = rateBurst;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Runs each message part on its own virtual thread (Java 21+, platform threads on older JVMs) instead of the task
+     * executor, with at most maxVirtualThreads parts processed at once. Suits processors blocking on I/O.
+     * @param virtualThreads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public int getMaxVirtualThreads() {
+        return maxVirtualThreads;
+    }
+
+    /**
+     * Sets the max number of parts processed at once on virtual threads (default 1000). Without virtual threads (before
+     * Java 21) parts run on up to this many platform threads, and 0 (unlimited) fails on start.
+     * @param maxVirtualThreads
+     */
+    public void setMaxVirtualThreads(int maxVirtualThreads) {
+        this.maxVirtualThreads = maxVirtualThreads;
+    }
+
+    public int getPriorityWorkers() {
+        return priorityWorkers;
+    }
+
+    /**
+     * Enables priority lanes: at most priorityWorkers tasks are passed on to the task executor at once (usually its
+     * pool size), and free workers take the next task from the live, retry and replay lanes in proportion to their
+     * weights. 0 (default) passes tasks on in FIFO order. Ignored when striping, as key order takes precedence.
+     * @param priorityWorkers
+     */
+    public void setPriorityWorkers(int priorityWorkers) {
+        this.priorityWorkers = priorityWorkers;
+    }
+
+    public Map<Priority, Integer> getPriorityWeights() {
+        return priorityWeights;
+    }
+
+    /**
+     * Sets the relative share of the workers of each priority lane while busy. Defaults to LIVE 6, RETRY 3, REPLAY 1.
+     * A lane of weight 0 only runs when the other lanes are idle; missing lanes get weight 1.
+     * @param priorityWeights
+     * @throws IllegalArgumentException if a weight is negative
+     */
+    public void setPriorityWeights(Map<Priority, Integer> priorityWeights) {
+        for(Map.Entry<Priority, Integer> weight: priorityWeights.entrySet()){
+            if(weight.getValue()!=null && weight.getValue()<0)
+                throw new IllegalArgumentException("Negative weight of priority " + weight.getKey() + ": " + weight.getValue());
+        }
+        this.priorityWeights = priorityWeights;
+    }
+
+    public int getMaxOutstanding() {
+        return maxOutstanding;
+    }
+
+    /**
+     * Sets the max number of parts in process by an {@link AsyncMessageProcessor}, 0 (default) means unlimited.
+     * Executor threads wait to start parts over the limit, so a bounded task executor needs more threads than the
+     * limit (or maxConcurrent below the pool size) to keep threads free for other work.
+     * @param maxOutstanding
+     */
+    public void setMaxOutstanding(int maxOutstanding) {
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    public int getDedupCapacity() {
+        return dedupCapacity;
+    }
+
+    /**
+     * Sets the number of recent message part ids remembered to skip duplicates (e.g. messages fetched again after a
+     * restart, or resubmitted while still queued). Parts in process or recently completed are not processed again;
+     * failed parts are forgotten so that they can be retried. 0 (default) disables the dedup.
+     * @param dedupCapacity
+     */
+    public void setDedupCapacity(int dedupCapacity) {
+        this.dedupCapacity = dedupCapacity;
+    }
+
+    public long getDedupTtl() {
+        return dedupTtl;
+    }
+
+    /**
+     * Sets the time in millis a part id is remembered, 0 (default) means until evicted by newer ids
+     * @param dedupTtl
+     */
+    public void setDedupTtl(long dedupTtl) {
+        this.dedupTtl = dedupTtl;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Sets the circuit breaker used instead of checking the processor availability on every message
+     * @param circuitBreaker
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+
+    /**
+     * Sets the number of lanes used to process parts implementing {@link KeyedMessage} in order: parts with equal
+     * routing keys run one at a time in the order received, while different keys run in parallel on the task
+     * executor. 0 (default) processes all parts unordered.
+     * @param stripes
+     */
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    public boolean isBisect() {
+        return bisect;
+    }
+
+    /**
+     * Splits composite notifications that failed more than maxRetry times in halves, instead of unitary notifications,
+     * so that a bad item is isolated in log2(size) splits while the rest is processed in large parts. With bisection
+     * a maxRetry of 0 splits on every failure.
+     * @param bisect
+     */
+    public void setBisect(boolean bisect) {
+        this.bisect = bisect;
+    }
+
     public int getMaxRetrySingle() {
         return maxRetrySingle;
     }
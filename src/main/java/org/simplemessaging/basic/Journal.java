@@ -0,0 +1,403 @@
+package org.simplemessaging.basic;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of message states of a single listener, stored in memory-mapped segment files. The live state of each
+ * message is kept in an in-memory index, which is rebuilt by replaying the segments when the journal is opened.
+ * <p>
+ * Record layout: length (int, of the rest of the record), CRC32 of the fields below (int), status (byte), message id
+ * (int), fail count (int) and the serialised message, which is only present when the record (re)writes the message.
+ * A zero length marks the end of a segment; a bad checksum marks a torn write. RETRY_AT records carry the time of the
+ * next attempt of a failed message (long) instead of the message, and don't change its state.
+ * <p>
+ * Segments are compacted oldest first: the live entries of the oldest segment are rewritten to the active segment and
+ * the file is deleted. This keeps deleted entries (COMPLETED records) from reappearing on replay.
+ */
+class Journal {
+    private final static Logger LOGGER = Logger.getLogger(Journal.class);
+
+    private static final String SUFFIX = ".journal";
+    private static final int HEADER = 17;
+
+    enum Status {
+        PROCESSING, FAILED, INVALID, COMPLETED, RETRY_AT;
+
+        static Status valueOf(byte code) {
+            return values()[code];
+        }
+    }
+
+    /**
+     * Live state of a message
+     */
+    private static class Entry {
+        Status status;
+        int failCount;
+        Segment segment;
+        int dataOffset;
+        int dataLength;
+        long retryAt;
+        Segment retrySegment;
+    }
+
+    /**
+     * Retry schedule of a failed message
+     */
+    static class Retry {
+        final int id;
+        final int failCount;
+        final long retryAt;
+
+        Retry(int id, int failCount, long retryAt) {
+            this.id = id;
+            this.failCount = failCount;
+            this.retryAt = retryAt;
+        }
+    }
+
+    /**
+     * A copy of a logged message
+     */
+    static class Stored {
+        final byte[] data;
+        final int failCount;
+
+        Stored(byte[] data, int failCount) {
+            this.data = data;
+            this.failCount = failCount;
+        }
+    }
+
+    private static class Segment {
+        final long sequence;
+        final File file;
+        final MappedByteBuffer buffer;
+        int position;
+
+        Segment(long sequence, File file, int size) throws IOException {
+            this.sequence = sequence;
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < size) raf.setLength(size);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final boolean forceWrites;
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final Map<Integer, Entry> index = new LinkedHashMap<Integer, Entry>();
+    private long totalBytes;
+    private long liveBytes;
+
+    Journal(File directory, int segmentSize, boolean forceWrites) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.forceWrites = forceWrites;
+    }
+
+    /**
+     * Opens the journal, replaying any existing segments
+     * @throws IOException
+     */
+    synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create journal directory " + directory);
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        for (File file : files) {
+            Segment segment = new Segment(sequenceOf(file), file, 0);
+            segments.add(segment);
+            replay(segment);
+            totalBytes += segment.position;
+        }
+        LOGGER.info("Journal " + directory + " opened with " + index.size() + " entries in " + segments.size() + " segments");
+    }
+
+    synchronized void write(Status status, int id, byte[] data, int dataLength) throws IOException {
+        Entry entry = index.get(id);
+        if (status == Status.COMPLETED) {
+            if (entry == null) return;
+            append(status, id, 0, null, 0);
+            apply(id, status, 0, null, 0, 0);
+            return;
+        }
+        int failCount = entry == null ? 0 : entry.failCount;
+        if (data == null) {
+            if (entry == null) {
+                LOGGER.warn("Message " + id + " not found in journal " + directory);
+                return;
+            }
+            if (status == Status.FAILED) failCount++;
+        }
+        Segment segment = append(status, id, failCount, data, dataLength);
+        apply(id, status, failCount, data == null ? null : segment, segment.position - dataLength, dataLength);
+    }
+
+    /**
+     * Records the time of the next attempt of a message
+     */
+    synchronized void schedule(int id, long retryAt) throws IOException {
+        Entry entry = index.get(id);
+        if (entry == null) return;
+        appendRetryAt(id, entry, retryAt);
+    }
+
+    private void appendRetryAt(int id, Entry entry, long retryAt) throws IOException {
+        byte[] data = new byte[8];
+        putInt(data, 0, (int) (retryAt >>> 32));
+        putInt(data, 4, (int) retryAt);
+        entry.retrySegment = append(Status.RETRY_AT, id, entry.failCount, data, data.length);
+        entry.retryAt = retryAt;
+    }
+
+    /**
+     * Marks messages left as PROCESSING (e.g. by a crash) as failed
+     */
+    synchronized void markStalledAsFailed() throws IOException {
+        for (Map.Entry<Integer, Entry> e : new ArrayList<Map.Entry<Integer, Entry>>(index.entrySet())) {
+            Entry entry = e.getValue();
+            if (entry.status == Status.PROCESSING) {
+                append(Status.FAILED, e.getKey(), entry.failCount, null, 0);
+                entry.status = Status.FAILED;
+            }
+        }
+    }
+
+    synchronized Stored find(int id) {
+        Entry entry = index.get(id);
+        return entry == null ? null : new Stored(read(entry), entry.failCount);
+    }
+
+    synchronized List<Stored> find(Status status, int max, int maxFailCount) {
+        List<Stored> result = new ArrayList<Stored>();
+        for (Entry entry : index.values()) {
+            if (result.size() >= max) break;
+            if (entry.status == status && (maxFailCount <= 0 || entry.failCount <= maxFailCount))
+                result.add(new Stored(read(entry), entry.failCount));
+        }
+        return result;
+    }
+
+    /**
+     * Ids of the messages with the given status, in logging order
+     */
+    synchronized List<Integer> ids(Status status, int maxFailCount) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Map.Entry<Integer, Entry> e : index.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.status == status && (maxFailCount <= 0 || entry.failCount <= maxFailCount))
+                ids.add(e.getKey());
+        }
+        return ids;
+    }
+
+    /**
+     * Retry schedule of the failed messages, in logging order
+     */
+    synchronized List<Retry> retries() {
+        List<Retry> retries = new ArrayList<Retry>();
+        for (Map.Entry<Integer, Entry> e : index.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.status == Status.FAILED) retries.add(new Retry(e.getKey(), entry.failCount, entry.retryAt));
+        }
+        return retries;
+    }
+
+    /**
+     * Finds a message, if it still has the given status
+     */
+    synchronized Stored find(int id, Status status) {
+        Entry entry = index.get(id);
+        return entry == null || entry.status != status ? null : new Stored(read(entry), entry.failCount);
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Compacts the oldest sealed segments while the ratio of live bytes to journal bytes is below the threshold
+     * @param threshold
+     * @throws IOException
+     */
+    synchronized void compact(double threshold) throws IOException {
+        while (segments.size() > 1 && totalBytes > 0 && (double) liveBytes / totalBytes < threshold) {
+            Segment oldest = segments.getFirst();
+            int moved = 0;
+            for (Map.Entry<Integer, Entry> e : new ArrayList<Map.Entry<Integer, Entry>>(index.entrySet())) {
+                Entry entry = e.getValue();
+                if (entry.segment == oldest) {
+                    byte[] data = read(entry);
+                    Segment segment = append(entry.status, e.getKey(), entry.failCount, data, data.length);
+                    apply(e.getKey(), entry.status, entry.failCount, segment, segment.position - data.length, data.length);
+                    moved++;
+                }
+                if (entry.retrySegment == oldest || (entry.retrySegment != null && entry.segment != null
+                        && entry.retrySegment.sequence < entry.segment.sequence)) {
+                    appendRetryAt(e.getKey(), entry, entry.retryAt); //keep it after the rewritten message
+                }
+            }
+            segments.removeFirst();
+            totalBytes -= oldest.position;
+            if (!oldest.file.delete())
+                LOGGER.warn("Failed deleting compacted journal segment " + oldest.file);
+            LOGGER.debug("Compacted journal segment " + oldest.file + ", moved " + moved + " entries");
+        }
+    }
+
+    synchronized void close() {
+        if (!segments.isEmpty()) segments.getLast().buffer.force();
+        segments.clear();
+        index.clear();
+    }
+
+    private void replay(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0) break;
+            if (length < HEADER - 4 || position + 4 + length > buffer.capacity()) {
+                LOGGER.warn("Truncated record at " + position + " in journal segment " + segment.file);
+                break;
+            }
+            byte[] record = new byte[length - 4];
+            buffer.position(position + 8);
+            buffer.get(record);
+            CRC32 crc = new CRC32();
+            crc.update(record, 0, record.length);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                LOGGER.warn("Corrupt record at " + position + " in journal segment " + segment.file);
+                break;
+            }
+            int next = position + 4 + length;
+            Status status = Status.valueOf(record[0]);
+            int id = buffer.getInt(position + 9);
+            int failCount = buffer.getInt(position + 13);
+            int dataLength = length - (HEADER - 4);
+            if (status == Status.RETRY_AT) {
+                Entry entry = index.get(id);
+                if (entry != null) {
+                    entry.retryAt = buffer.getLong(next - 8);
+                    entry.retrySegment = segment;
+                }
+            } else {
+                apply(id, status, failCount, dataLength > 0 ? segment : null, next - dataLength, dataLength);
+            }
+            position = next;
+        }
+        segment.position = position;
+    }
+
+    /**
+     * Applies a record to the index. Records without data keep the current data of the entry.
+     */
+    private void apply(int id, Status status, int failCount, Segment segment, int dataOffset, int dataLength) {
+        Entry entry = index.get(id);
+        if (status == Status.COMPLETED) {
+            if (entry != null) {
+                index.remove(id);
+                release(entry);
+            }
+            return;
+        }
+        if (entry == null) {
+            if (segment == null) return;
+            entry = new Entry();
+            index.put(id, entry);
+        }
+        if (segment != null) {
+            release(entry);
+            entry.segment = segment;
+            entry.dataOffset = dataOffset;
+            entry.dataLength = dataLength;
+            liveBytes += HEADER + dataLength;
+        }
+        entry.status = status;
+        entry.failCount = failCount;
+    }
+
+    private void release(Entry entry) {
+        if (entry.segment == null) return;
+        liveBytes -= HEADER + entry.dataLength;
+    }
+
+    private byte[] read(Entry entry) {
+        byte[] data = new byte[entry.dataLength];
+        MappedByteBuffer buffer = entry.segment.buffer;
+        buffer.position(entry.dataOffset);
+        buffer.get(data);
+        return data;
+    }
+
+    /**
+     * Appends a record to the active segment, rolling over to a new segment when it doesn't fit
+     * @return the segment the record was written to
+     */
+    private Segment append(Status status, int id, int failCount, byte[] data, int dataLength) throws IOException {
+        int size = HEADER + dataLength;
+        Segment segment = segments.isEmpty() ? null : segments.getLast();
+        if (segment == null || segment.buffer.capacity() - segment.position < size + 4) {
+            if (segment != null) segment.buffer.force();
+            long sequence = segment == null ? 1 : segment.sequence + 1;
+            segment = new Segment(sequence, new File(directory, String.format("%020d", sequence) + SUFFIX),
+                    Math.max(segmentSize, size + 4));
+            segments.add(segment);
+        }
+        byte[] header = new byte[9];
+        header[0] = (byte) status.ordinal();
+        putInt(header, 1, id);
+        putInt(header, 5, failCount);
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, header.length);
+        if (dataLength > 0) crc.update(data, 0, dataLength);
+
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.position(segment.position + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(header);
+        if (dataLength > 0) buffer.put(data, 0, dataLength);
+        buffer.putInt(segment.position, size - 4); //written last, so a partial record is never read back
+        segment.position += size;
+        totalBytes += size;
+        if (forceWrites) buffer.force();
+        return segment;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+}
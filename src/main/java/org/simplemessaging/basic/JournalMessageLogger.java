@@ -0,0 +1,307 @@
+package org.simplemessaging.basic;
+
+import org.apache.log4j.Logger;
+import org.simplemessaging.AbstractMessageLogger;
+import org.simplemessaging.Message;
+import org.simplemessaging.MessageHandler;
+import org.simplemessaging.RetryScheduleHandler;
+import org.simplemessaging.serialization.KryoMessageSerializer;
+import org.simplemessaging.serialization.MessageBuffer;
+import org.simplemessaging.serialization.MessageSerializer;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageLogger implementation that persists notifications in append-only journal files, one journal directory per
+ * listener, for deployments without a database. Failed and in-process messages are served from the journal's
+ * in-memory index, and segments are compacted in the background.
+ * @param <T>
+ */
+public class JournalMessageLogger<T extends Message> extends AbstractMessageLogger<T> implements DisposableBean {
+
+    private final static Logger LOGGER = Logger.getLogger(JournalMessageLogger.class);
+
+    private String directory;
+
+    private int segmentSize = 64*1024*1024;
+
+    private boolean forceWrites = false;
+
+    private double compactionThreshold = 0.5;
+
+    private long compactionInterval = 10000;
+
+    private MessageSerializer serializer = new KryoMessageSerializer();
+
+    private final Map<String, Journal> journals = new ConcurrentHashMap<String, Journal>();
+
+    private ScheduledExecutorService compactor;
+
+    /**
+     * Opens (replaying) the listener's journal and marks any stalled notification as failed
+     * @param listenerName
+     */
+    public void register(String listenerName) {
+        LOGGER.info("Registering Message logger for :" + listenerName);
+        try {
+            journalFor(listenerName).markStalledAsFailed();
+        } catch (IOException e) {
+            LOGGER.error("Failed registering notification logger for " + listenerName, e);
+        }
+        startCompactor();
+    }
+
+    public void logProcessing(String listenerName, T message) {
+        MessageBuffer data = serializer.serialise(message);
+        try {
+            write(listenerName, message, Journal.Status.PROCESSING, data.getArray(), data.getLength());
+        } finally {
+            data.release();
+        }
+    }
+
+    public void logCompleted(String listenerName, T message) {
+        write(listenerName, message, Journal.Status.COMPLETED, null, 0);
+    }
+
+    public void logFailed(String listenerName, T message, Exception e) {
+        write(listenerName, message, Journal.Status.FAILED, null, 0);
+    }
+
+    public void logInvalid(String listenerName, T message, Exception e) {
+        write(listenerName, message, Journal.Status.INVALID, null, 0);
+    }
+
+    /**
+     * Writes the message as failed, keeping its fail count
+     */
+    @Override
+    public void logSpilled(String listenerName, T message) {
+        MessageBuffer data = serializer.serialise(message);
+        try {
+            write(listenerName, message, Journal.Status.FAILED, data.getArray(), data.getLength());
+        } finally {
+            data.release();
+        }
+    }
+
+    public void logRetryAt(String listenerName, T message, long retryAt) {
+        try {
+            journalFor(listenerName).schedule(message.getId(), retryAt);
+        } catch (IOException e) {
+            LOGGER.error("Failed writing retry time of " + message, e);
+        }
+    }
+
+    public List<T> getInProcessMessages(String listenerName, int max) {
+        return load(listenerName, Journal.Status.PROCESSING, max, 0);
+    }
+
+    public List<T> getFailedMessages(String listenerName, int max) {
+        return load(listenerName, Journal.Status.FAILED, max, 0);
+    }
+
+    public List<T> getFailedMessages(String listenerName, int max, int maxFailCount) {
+        return load(listenerName, Journal.Status.FAILED, max, maxFailCount);
+    }
+
+    public int streamFailedMessages(String listenerName, int maxFailCount, MessageHandler<T> handler) {
+        return stream(listenerName, Journal.Status.FAILED, maxFailCount, handler);
+    }
+
+    public int streamInProcessMessages(String listenerName, MessageHandler<T> handler) {
+        return stream(listenerName, Journal.Status.PROCESSING, 0, handler);
+    }
+
+    public int streamRetrySchedule(String listenerName, RetryScheduleHandler handler) {
+        int count = 0;
+        for (Journal.Retry retry : journalFor(listenerName).retries()) {
+            count++;
+            if (!handler.handle(retry.id, retry.failCount, retry.retryAt)) break;
+        }
+        return count;
+    }
+
+    public T findFailedMessage(String listenerName, int id) {
+        Journal.Stored stored = journalFor(listenerName).find(id, Journal.Status.FAILED);
+        return stored == null ? null : this.<T>deserialise(stored);
+    }
+
+    public T findNotification(String listenerName, int id) {
+        Journal.Stored stored = journalFor(listenerName).find(id);
+        return stored == null ? null : this.<T>deserialise(stored);
+    }
+
+    /**
+     * Compacts the journals of all listeners
+     */
+    public void compact() {
+        for (Map.Entry<String, Journal> entry : journals.entrySet()) {
+            try {
+                entry.getValue().compact(compactionThreshold);
+            } catch (IOException e) {
+                LOGGER.error("Failed compacting journal of " + entry.getKey(), e);
+            }
+        }
+    }
+
+    public synchronized void destroy() {
+        if (compactor != null) {
+            compactor.shutdown();
+            compactor = null;
+        }
+        for (Journal journal : journals.values()) {
+            journal.close();
+        }
+        journals.clear();
+    }
+
+    private void write(String listenerName, T message, Journal.Status status, byte[] data, int length) {
+        try {
+            journalFor(listenerName).write(status, message.getId(), data, length);
+        } catch (IOException e) {
+            LOGGER.error("Failed writing message log " + message + ", " + status, e);
+        }
+    }
+
+    private List<T> load(String listenerName, Journal.Status status, int max, int maxFailCount) {
+        List<T> notifications = new ArrayList<T>();
+        for (Journal.Stored stored : journalFor(listenerName).find(status, max, maxFailCount)) {
+            try {
+                notifications.add(this.<T>deserialise(stored));
+            } catch (Exception e) {
+                LOGGER.warn("Failed deserialising notification", e);
+            }
+        }
+        return notifications;
+    }
+
+    /**
+     * Streams the messages with the given status. Only their ids are collected upfront, each message is read and
+     * deserialised when handled.
+     */
+    private int stream(String listenerName, Journal.Status status, int maxFailCount, MessageHandler<T> handler) {
+        Journal journal = journalFor(listenerName);
+        int count = 0;
+        for (int id : journal.ids(status, maxFailCount)) {
+            Journal.Stored stored = journal.find(id, status);
+            if (stored == null) continue;
+            T notification;
+            try {
+                notification = this.<T>deserialise(stored);
+            } catch (Exception e) {
+                LOGGER.warn("Failed deserialising notification " + id, e);
+                continue;
+            }
+            count++;
+            if (!handler.handle(notification)) break;
+        }
+        return count;
+    }
+
+    private <M extends Message> M deserialise(Journal.Stored stored) {
+        M notification = serializer.<M>deserialise(stored.data);
+        notification.setFailCount(stored.failCount);
+        return notification;
+    }
+
+    private Journal journalFor(String listenerName) {
+        Journal journal = journals.get(listenerName);
+        if (journal != null) return journal;
+        synchronized (journals) {
+            journal = journals.get(listenerName);
+            if (journal == null) {
+                journal = new Journal(new File(directory, listenerName), segmentSize, forceWrites);
+                try {
+                    journal.open();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed opening journal of " + listenerName, e);
+                }
+                journals.put(listenerName, journal);
+            }
+            return journal;
+        }
+    }
+
+    private synchronized void startCompactor() {
+        if (compactor != null || compactionInterval <= 0) return;
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "JournalMessageLogger-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                compact();
+            }
+        }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public boolean isForceWrites() {
+        return forceWrites;
+    }
+
+    /**
+     * Forces every write to the storage device. By default writes survive a crash of the process but not of the OS.
+     * @param forceWrites
+     */
+    public void setForceWrites(boolean forceWrites) {
+        this.forceWrites = forceWrites;
+    }
+
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    /**
+     * Sets the ratio of live to total journal bytes below which segments are compacted
+     * @param compactionThreshold
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public long getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    public void setCompactionInterval(long compactionInterval) {
+        this.compactionInterval = compactionInterval;
+    }
+
+    public MessageSerializer getSerializer() {
+        return serializer;
+    }
+
+    public void setSerializer(MessageSerializer serializer) {
+        this.serializer = serializer;
+    }
+}
@@ -0,0 +1,74 @@
+package org.simplemessaging.basic;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SQL statements of the logging table of a single listener. These are built once when the listener is registered.
+ */
+class LogStatements {
+    /**
+     * Default upsert of the PROCESSING transition (H2 syntax). The only argument is the quoted table name
+     */
+    static final String MERGE_TEMPLATE = "MERGE INTO %s (id, notification, status, owner, leaseExpiry) KEY(id) VALUES(?,?,?,?,?)";
+
+    final String table;
+    final String upsert;
+    final String delete;
+    final String markFailed;
+    final String markInvalid;
+    final String markStalled;
+    final String markRetryAt;
+    final String selectById;
+    final String selectByIdAndStatus;
+    final String selectSchedulePage;
+    final String selectPage;
+    final String selectPageByFailCount;
+    final String markFailedReleased;
+    final String claim;
+    final String renewLeases;
+    final String releaseExpired;
+    final String releaseOwned;
+    final String selectClaimablePage;
+    final String selectClaimablePageByFailCount;
+    final Map<String, String> indexes = new LinkedHashMap<String, String>();
+    /** columns added after the first release of the table, by name, to be added to existing tables */
+    final Map<String, String> columns = new LinkedHashMap<String, String>();
+
+    LogStatements(String tableName, String upsertTemplate) {
+        table = "\"" + tableName + "\"";
+        upsert = String.format(upsertTemplate, table);
+        delete = "DELETE FROM " + table + " WHERE id=?";
+        markFailed = "UPDATE " + table + " SET failCount=failCount+1, status=? WHERE id=?";
+        markInvalid = "UPDATE " + table + " SET status=? WHERE id=?";
+        markStalled = "UPDATE " + table + " SET status=? WHERE status=?";
+        markRetryAt = "UPDATE " + table + " SET retryAt=? WHERE id=?";
+        selectById = "SELECT notification, failCount FROM " + table + " WHERE id=?";
+        selectByIdAndStatus = "SELECT notification, failCount FROM " + table + " WHERE id=? AND status=?";
+        selectSchedulePage = "SELECT id, failCount, retryAt FROM " + table + " WHERE status=? AND id>? ORDER BY id LIMIT ?";
+        selectPage = "SELECT id, notification, failCount FROM " + table + " WHERE status=? AND id>? AND id<=?"
+                + " ORDER BY id LIMIT ?";
+        selectPageByFailCount = "SELECT id, notification, failCount FROM " + table + " WHERE status=? AND id>? AND id<=?"
+                + " AND failCount<=? ORDER BY id LIMIT ?";
+        markFailedReleased = "UPDATE " + table + " SET failCount=failCount+1, status=?, owner=NULL, leaseExpiry=0 WHERE id=?";
+        claim = "UPDATE " + table + " SET owner=?, leaseExpiry=? WHERE id=? AND status=?"
+                + " AND (owner IS NULL OR owner=? OR leaseExpiry<?)";
+        renewLeases = "UPDATE " + table + " SET leaseExpiry=? WHERE owner=? AND status=?";
+        releaseExpired = "UPDATE " + table + " SET status=?, owner=NULL, leaseExpiry=0 WHERE status=? AND leaseExpiry<?";
+        releaseOwned = "UPDATE " + table + " SET status=?, owner=NULL, leaseExpiry=0 WHERE status=? AND owner=?";
+        String claimable = "SELECT id, notification, failCount FROM " + table + " WHERE status=? AND id>? AND id<=?"
+                + " AND (owner IS NULL OR owner=? OR leaseExpiry<?)";
+        selectClaimablePage = claimable + " ORDER BY id LIMIT ?";
+        selectClaimablePageByFailCount = claimable + " AND failCount<=? ORDER BY id LIMIT ?";
+        addIndex(tableName, "STATUS", "status, id");
+        addIndex(tableName, "FAILCOUNT", "status, failCount");
+        columns.put("RETRYAT", "retryAt BIGINT DEFAULT 0");
+        columns.put("OWNER", "owner VARCHAR(100)");
+        columns.put("LEASEEXPIRY", "leaseExpiry BIGINT DEFAULT 0");
+    }
+
+    private void addIndex(String tableName, String suffix, String columns) {
+        String name = "IDX_" + tableName + "_" + suffix;
+        indexes.put(name, "CREATE INDEX \"" + name + "\" ON " + table + " (" + columns + ")");
+    }
+}
@@ -0,0 +1,16 @@
+package org.simplemessaging.basic;
+
+/**
+ * Thrown when queued message log events could not be written, to callers waiting for them to be flushed
+ */
+public class LogWriteException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public LogWriteException(String message) {
+        super(message);
+    }
+
+    public LogWriteException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
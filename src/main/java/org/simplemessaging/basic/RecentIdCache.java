@@ -0,0 +1,111 @@
+package org.simplemessaging.basic;
+
+/**
+ * Bounded set of recently seen message ids, keyed on primitive ints. Ids are kept in insertion order in a ring: when
+ * the cache is full the oldest id is evicted, and ids older than ttl (if positive) are treated as absent.
+ * Lookups use an open-addressing hash table (linear probing, backward-shift deletion) over primitive arrays, so there's
+ * no allocation or boxing per operation.
+ */
+class RecentIdCache {
+    private final long ttl;
+    private final int[] ring;
+    private final long[] times; //-1 marks ids removed from the ring
+    private int head;
+    private int size;
+
+    private final int[] keys;
+    private final int[] slots; //ring position + 1, 0 marks an empty bucket
+    private final int mask;
+
+    RecentIdCache(int capacity, long ttl) {
+        this.ttl = ttl;
+        ring = new int[capacity];
+        times = new long[capacity];
+        int buckets = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2;
+        keys = new int[buckets];
+        slots = new int[buckets];
+        mask = buckets - 1;
+    }
+
+    /**
+     * Adds an id, unless it's already present and not expired
+     * @param id
+     * @param now current time in millis
+     * @return false if the id was present
+     */
+    synchronized boolean add(int id, long now) {
+        int bucket = find(id);
+        if (bucket >= 0) {
+            int position = slots[bucket] - 1;
+            if (ttl <= 0 || now - times[position] < ttl) return false;
+            times[position] = -1;
+            delete(bucket);
+        }
+        if (size == ring.length) evictOldest();
+        int position = (head + size) % ring.length;
+        ring[position] = id;
+        times[position] = now;
+        size++;
+        bucket = hash(id) & mask;
+        while (slots[bucket] != 0) bucket = (bucket + 1) & mask;
+        keys[bucket] = id;
+        slots[bucket] = position + 1;
+        return true;
+    }
+
+    synchronized boolean contains(int id, long now) {
+        int bucket = find(id);
+        return bucket >= 0 && (ttl <= 0 || now - times[slots[bucket] - 1] < ttl);
+    }
+
+    synchronized void remove(int id) {
+        int bucket = find(id);
+        if (bucket < 0) return;
+        times[slots[bucket] - 1] = -1;
+        delete(bucket);
+    }
+
+    /**
+     * Number of ids in the ring, including removed ids not evicted yet
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    private void evictOldest() {
+        if (times[head] >= 0) delete(find(ring[head]));
+        head = (head + 1) % ring.length;
+        size--;
+    }
+
+    private int find(int id) {
+        int bucket = hash(id) & mask;
+        while (slots[bucket] != 0) {
+            if (keys[bucket] == id) return bucket;
+            bucket = (bucket + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void delete(int bucket) {
+        int next = bucket;
+        while (true) {
+            next = (next + 1) & mask;
+            if (slots[next] == 0) break;
+            int home = hash(keys[next]) & mask;
+            //move the entry back unless its home bucket lies cyclically in (bucket, next]
+            boolean inRange = bucket <= next ? (home > bucket && home <= next) : (home > bucket || home <= next);
+            if (!inRange) {
+                keys[bucket] = keys[next];
+                slots[bucket] = slots[next];
+                bucket = next;
+            }
+        }
+        slots[bucket] = 0;
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
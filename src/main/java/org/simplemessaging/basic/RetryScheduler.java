@@ -0,0 +1,275 @@
+package org.simplemessaging.basic;
+
+import org.apache.log4j.Logger;
+import org.simplemessaging.ListenerNotRunningException;
+import org.simplemessaging.Message;
+import org.simplemessaging.MessageLogger;
+import org.simplemessaging.ProcessorUnavailableException;
+import org.simplemessaging.RetryScheduleHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Resubmits the failed messages of a listener with exponential backoff. The time of the next attempt of each failed
+ * message is persisted by the message logger and kept in a time-ordered queue in memory (only ids and times, the
+ * messages are loaded when due). A background thread releases the due messages in batches sized to the listener's free
+ * processing capacity, counting the parts of each message.
+ * <p>
+ * The delay before attempt n (n = fail count) is initialDelay * multiplier^(n-1), up to maxDelay, randomised by
+ * +/- jitter so that messages failed together are not retried together.
+ * @param <T>
+ */
+public class RetryScheduler<T extends Message> implements Runnable {
+    final static Logger logger = Logger.getLogger(RetryScheduler.class);
+
+    private long initialDelay = 1000;
+
+    private long maxDelay = 10 * 60 * 1000;
+
+    private double multiplier = 2;
+
+    private double jitter = 0.2;
+
+    private int maxReleaseSize = 100;
+
+    private long pollInterval = 1000;
+
+    private final PriorityQueue<Retry> queue = new PriorityQueue<Retry>();
+
+    private final Random random = new Random();
+
+    private GenericMessageListener<T> listener;
+
+    private Thread thread;
+
+    private volatile boolean running;
+
+    /**
+     * A scheduled attempt
+     */
+    private static class Retry implements Comparable<Retry> {
+        final int id;
+        final long retryAt;
+
+        Retry(int id, long retryAt) {
+            this.id = id;
+            this.retryAt = retryAt;
+        }
+
+        public int compareTo(Retry other) {
+            return retryAt < other.retryAt ? -1 : retryAt > other.retryAt ? 1 : 0;
+        }
+    }
+
+    /**
+     * Loads the retry schedule of the listener's failed messages and starts releasing them. Messages without a
+     * scheduled time are due immediately.
+     * @param listener
+     */
+    public synchronized void start(GenericMessageListener<T> listener) {
+        if (running) return;
+        this.listener = listener;
+        final long now = System.currentTimeMillis();
+        int count = listener.getMessageLogger().streamRetrySchedule(listener.getListenerId(), new RetryScheduleHandler() {
+            public boolean handle(int id, int failCount, long retryAt) {
+                queue.add(new Retry(id, retryAt > 0 ? retryAt : now));
+                return true;
+            }
+        });
+        logger.info("Loaded retry schedule of " + count + " failed messages of " + listener.getListenerId());
+        running = true;
+        thread = new Thread(this, "RetryScheduler-" + listener.getListenerId());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+        queue.clear();
+    }
+
+    /**
+     * Schedules the next attempt of a message that just failed, persisting its time
+     * @param message
+     */
+    public void schedule(T message) {
+        long retryAt = System.currentTimeMillis() + delay(message.getFailCount() + 1);
+        listener.getMessageLogger().logRetryAt(listener.getListenerId(), message, retryAt);
+        add(message.getId(), retryAt);
+    }
+
+    /**
+     * Backoff delay before the given attempt
+     * @param failCount
+     * @return
+     */
+    public long delay(int failCount) {
+        double delay = initialDelay * Math.pow(multiplier, Math.max(0, failCount - 1));
+        delay = Math.min(delay, maxDelay);
+        double factor;
+        synchronized (random) {
+            factor = 1 + jitter * (2 * random.nextDouble() - 1);
+        }
+        return (long) (delay * factor);
+    }
+
+    /**
+     * Number of scheduled attempts
+     * @return
+     */
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    private synchronized void add(int id, long retryAt) {
+        if (!running) return;
+        Retry retry = new Retry(id, retryAt);
+        queue.add(retry);
+        if (queue.peek() == retry) notifyAll();
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                if (releaseDue() == 0) waitForDue();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("Failed releasing scheduled retries of " + listener.getListenerId(), e);
+            }
+        }
+    }
+
+    /**
+     * Waits until the first message is due, or for pollInterval if it's already due but there's not enough free capacity
+     */
+    private synchronized void waitForDue() throws InterruptedException {
+        Retry head = queue.peek();
+        long wait = head == null ? pollInterval : head.retryAt - System.currentTimeMillis();
+        wait = wait <= 0 || listener.getRemainingCapacity() <= 0 ? pollInterval : Math.min(pollInterval, wait);
+        if (running && wait > 0) wait(wait);
+    }
+
+    /**
+     * Resubmits the due messages, up to maxReleaseSize messages and as many parts as the listener's free capacity.
+     * Each message counts as {@link Message#size()} parts, its max number of partitions. A message with more parts than
+     * the free capacity waits for the listener to free it, unless the listener is idle.
+     * @return the number of messages released
+     */
+    public int releaseDue() {
+        int capacity = listener.getRemainingCapacity();
+        int idle = listener.getMaxQueuedParts() > 0 ? listener.getMaxQueuedParts() : Integer.MAX_VALUE;
+        long now = System.currentTimeMillis();
+        if (!listener.isRunning()) {
+            postponeDue(now + initialDelay); //not taken off the queue until the listener runs
+            return 0;
+        }
+        MessageLogger<T> messageLogger = listener.getMessageLogger();
+        int released = 0;
+        while (released < maxReleaseSize && capacity > 0) {
+            Retry retry;
+            synchronized (this) {
+                if (queue.isEmpty() || queue.peek().retryAt > now) break;
+                retry = queue.poll();
+            }
+            T message = messageLogger.findFailedMessage(listener.getListenerId(), retry.id);
+            if (message == null) continue; //completed or resubmitted by other means
+            int parts = Math.max(1, message.size());
+            if (parts > capacity && capacity < idle) {
+                add(retry.id, retry.retryAt);
+                break;
+            }
+            try {
+                listener.resubmit(message);
+            } catch (ProcessorUnavailableException e) {
+                logger.debug("Processor unavailable, postponing retry of " + message);
+                add(retry.id, now + initialDelay);
+                postponeDue(now + initialDelay);
+                break;
+            } catch (ListenerNotRunningException e) {
+                //the listener stops this scheduler when it stops for good
+                logger.debug("Listener not running, postponing retry of " + message);
+                add(retry.id, now + initialDelay);
+                postponeDue(now + initialDelay);
+                break;
+            }
+            capacity -= parts;
+            released++;
+        }
+        return released;
+    }
+
+    /**
+     * Moves the due attempts to the given time
+     */
+    private synchronized void postponeDue(long retryAt) {
+        List<Retry> due = new ArrayList<Retry>();
+        while (!queue.isEmpty() && queue.peek().retryAt < retryAt) {
+            due.add(queue.poll());
+        }
+        for (Retry retry : due) {
+            queue.add(new Retry(retry.id, retryAt));
+        }
+    }
+
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    public void setInitialDelay(long initialDelay) {
+        this.initialDelay = initialDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public void setMultiplier(double multiplier) {
+        this.multiplier = multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Sets the max random variation of the delays, as a fraction of the delay (default 0.2)
+     * @param jitter
+     */
+    public void setJitter(double jitter) {
+        this.jitter = jitter;
+    }
+
+    public int getMaxReleaseSize() {
+        return maxReleaseSize;
+    }
+
+    public void setMaxReleaseSize(int maxReleaseSize) {
+        this.maxReleaseSize = maxReleaseSize;
+    }
+
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * Sets the max time the scheduler waits before checking for due messages and free capacity again
+     * @param pollInterval
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+}
@@ -0,0 +1,54 @@
+package org.simplemessaging.basic;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Prepared statements of a single connection, keyed by their SQL. Statements are prepared on first use and kept open
+ * until the cache is closed, which also closes the connection.
+ */
+class StatementCache {
+    private final static Logger LOGGER = Logger.getLogger(StatementCache.class);
+
+    private final Connection connection;
+
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+    StatementCache(Connection connection) {
+        this.connection = connection;
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement pstmt = statements.get(sql);
+        if (pstmt == null) {
+            pstmt = connection.prepareStatement(sql);
+            statements.put(sql, pstmt);
+        }
+        return pstmt;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    void close() {
+        for (PreparedStatement pstmt : statements.values()) {
+            try {
+                pstmt.close();
+            } catch (SQLException e) {
+                LOGGER.warn("Failed closing statement", e);
+            }
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.error(e);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.simplemessaging.basic;
+
+import org.apache.log4j.Logger;
+import org.simplemessaging.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded write-behind queue for message log events. Events are collected by a dedicated writer thread into flush
+ * windows (closed when flushSize events are collected or lingerMillis elapse) and handed over to a {@link BatchWriter}.
+ * Within a window a PROCESSING event followed by a COMPLETED event for the same message is cancelled.
+ * <p>
+ * A window that fails to be written is retried up to maxAttempts times. If it still fails, its events are dropped and
+ * callers waiting for them (FLUSHED events and {@link #flush()}) get a {@link LogWriteException}.
+ */
+class WriteBehindWriter implements Runnable {
+    private final static Logger LOGGER = Logger.getLogger(WriteBehindWriter.class);
+
+    enum Kind {PROCESSING, COMPLETED, FAILED, INVALID, RETRY, SPILLED}
+
+    /**
+     * A single log write. Events without message are flush markers.
+     */
+    static class LogEvent {
+        final String listenerName;
+        final Message message;
+        final Kind kind;
+        final CountDownLatch flushed;
+        final long retryAt;
+        boolean cancelled;
+        volatile Throwable failure; //set before the flushed latch is counted down if the event wasn't written
+
+        LogEvent(String listenerName, Message message, Kind kind, boolean awaitFlush) {
+            this(listenerName, message, kind, awaitFlush, 0);
+        }
+
+        LogEvent(String listenerName, Message message, Kind kind, boolean awaitFlush, long retryAt) {
+            this.listenerName = listenerName;
+            this.message = message;
+            this.kind = kind;
+            this.flushed = awaitFlush ? new CountDownLatch(1) : null;
+            this.retryAt = retryAt;
+        }
+
+        String key() {
+            return listenerName + ":" + message.getId();
+        }
+    }
+
+    /**
+     * Writes a flush window. Events of the same round are independent of each other (at most one per message),
+     * rounds must be written in order.
+     */
+    interface BatchWriter {
+        void write(List<List<LogEvent>> rounds) throws Exception;
+    }
+
+    private final BlockingQueue<LogEvent> queue;
+    private final BatchWriter batchWriter;
+    private final int flushSize;
+    private final long lingerMillis;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private final AtomicLong failedWindows = new AtomicLong();
+
+    static final int MAX_ATTEMPTS = 3;
+    static final long RETRY_DELAY = 100;
+
+    WriteBehindWriter(BatchWriter batchWriter, int capacity, int flushSize, long lingerMillis, String name) {
+        this.batchWriter = batchWriter;
+        this.queue = new ArrayBlockingQueue<LogEvent>(capacity);
+        this.flushSize = flushSize;
+        this.lingerMillis = lingerMillis;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a log event, blocking while the queue is full. If the event was created to await the flush, this
+     * method returns only after the flush window containing it has been written.
+     * @throws LogWriteException if the writer is closed, or the event awaits the flush and it couldn't be written, or
+     * the wait was interrupted (the interrupt flag is kept)
+     */
+    void enqueue(LogEvent event) {
+        if (!running) throw new LogWriteException("Message log writer closed");
+        try {
+            queue.put(event);
+            if (event.flushed != null) {
+                event.flushed.await();
+                if (event.failure != null) throw new LogWriteException("Failed writing message log event", event.failure);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (event.flushed != null) throw new LogWriteException("Interrupted waiting for the message log flush", e);
+        }
+    }
+
+    /**
+     * Waits until all the events queued so far have been written
+     * @throws LogWriteException if a window written in the meantime failed
+     */
+    void flush() {
+        if (!running) return;
+        long failed = failedWindows.get();
+        enqueue(new LogEvent(null, null, null, true));
+        if (failedWindows.get() != failed) throw new LogWriteException("Failed writing message log events");
+    }
+
+    /**
+     * Writes pending events and stops the writer thread
+     */
+    void close() {
+        try {
+            flush();
+        } finally {
+            running = false;
+            thread.interrupt();
+            try {
+                thread.join(lingerMillis + 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    public void run() {
+        List<LogEvent> window = new ArrayList<LogEvent>(flushSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                window.add(queue.take());
+                long deadline = System.currentTimeMillis() + lingerMillis;
+                while (window.size() < flushSize && window.get(window.size() - 1).message != null) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    LogEvent event = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (event == null) break;
+                    window.add(event);
+                }
+            } catch (InterruptedException e) {
+                if (running) continue;
+            }
+            write(window);
+            window.clear();
+        }
+    }
+
+    private void write(List<LogEvent> window) {
+        Throwable failure = null;
+        try {
+            List<List<LogEvent>> rounds = coalesce(window);
+            for (int attempt = 1; !rounds.isEmpty(); attempt++) {
+                try {
+                    batchWriter.write(rounds);
+                    failure = null;
+                    break;
+                } catch (Throwable e) {
+                    failure = e;
+                    if (attempt >= MAX_ATTEMPTS) break;
+                    LOGGER.warn("Failed writing " + window.size() + " message log events, retrying", e);
+                    Thread.sleep(RETRY_DELAY * attempt);
+                }
+            }
+        } catch (InterruptedException e) {
+            if (failure == null) failure = e;
+        }
+        if (failure != null) {
+            LOGGER.error("Failed writing " + window.size() + " message log events, dropping them", failure);
+            failedWindows.incrementAndGet();
+        }
+        for (LogEvent event : window) {
+            event.failure = failure;
+            if (event.flushed != null) event.flushed.countDown();
+        }
+    }
+
+    /**
+     * Drops PROCESSING events completed within the window and splits the remaining events into rounds, such that
+     * each round has at most one event per message and the order of events of a message is preserved.
+     * A COMPLETED event that cancels a PROCESSING event is kept as a primary key delete, as the message may have been
+     * logged by an earlier window (e.g. a retried message).
+     */
+    static List<List<LogEvent>> coalesce(List<LogEvent> window) {
+        Map<String, LogEvent> processing = new HashMap<String, LogEvent>();
+        for (LogEvent event : window) {
+            if (event.message == null) continue;
+            if (event.kind == Kind.PROCESSING) {
+                processing.put(event.key(), event);
+            } else {
+                LogEvent logged = processing.remove(event.key());
+                if (logged != null && event.kind == Kind.COMPLETED) logged.cancelled = true;
+            }
+        }
+
+        Map<String, Integer> seen = new HashMap<String, Integer>();
+        List<List<LogEvent>> rounds = new ArrayList<List<LogEvent>>();
+        for (LogEvent event : window) {
+            if (event.message == null || event.cancelled) continue;
+            Integer round = seen.get(event.key());
+            round = round == null ? 0 : round;
+            if (round == rounds.size()) rounds.add(new ArrayList<LogEvent>());
+            rounds.get(round).add(event);
+            seen.put(event.key(), round + 1);
+        }
+        return rounds;
+    }
+}
@@ -0,0 +1,351 @@
+package org.simplemessaging.fetching;
+
+import org.apache.log4j.Logger;
+import org.simplemessaging.*;
+import org.simplemessaging.fetching.FetchState.Status;
+import org.simplemessaging.util.AbstractSmartLifeCycle;
+import org.simplemessaging.util.VirtualThreadExecutor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Base class of the notification fetchers: fetches pages from a source through {@link #fetch(FetchState)} and
+ * delivers them to the listeners, passing the fetch state following each delivered page to a checkpoint. Subclasses
+ * decide which fetch states are fetched and where they are persisted: {@link MessageFetcher} keeps a single one,
+ * {@link ShardedMessageFetcher} one per shard.
+ * <p>
+ * With a positive prefetchDepth, fetching is pipelined: the next pages are fetched in a background thread while the
+ * current page is delivered to the listeners, up to prefetchDepth pages ahead. The fetch state is still saved only
+ * after the page it follows has been delivered, so a restart never skips undelivered pages.
+ * <p>
+ * Saving the fetch state can be coalesced to every checkpointPages pages or checkpointMillis millis, trading a longer
+ * replay after a crash (pages delivered again) for fewer writes. The last state is always saved at the end of a fetch
+ * run, and when this fetcher is stopped.
+ * @param <T>
+ */
+public abstract class AbstractMessageFetcher<T extends Message> extends AbstractSmartLifeCycle {
+
+    private final static Logger logger = Logger.getLogger(AbstractMessageFetcher.class);
+
+    private List<MessageListener<T>> messageListeners;
+
+    private String fetchStateFile;
+
+    private int prefetchDepth = 0; //max # of pages fetched ahead of the delivered page. 0 means no prefetching
+
+    private int checkpointPages = 1; //# of delivered pages between saves of the fetch state. 0 means no limit
+
+    private long checkpointMillis = 0; //max millis between saves of the fetch state. 0 means no limit
+
+    private boolean virtualThreads = false; //fetch in background on virtual threads instead of platform threads
+
+    private final Set<CoalescingCheckpoint> openCheckpoints =
+            Collections.newSetFromMap(new ConcurrentHashMap<CoalescingCheckpoint, Boolean>());
+
+    /**
+     * Main method for fetching notifications
+     */
+    public abstract void fetch() throws Exception;
+
+
+    /**
+     * Receives the fetch state following each delivered page
+     */
+    interface Checkpoint {
+        void save(FetchState fetchState);
+    }
+
+    /**
+     * Passes on every checkpointPages-th fetch state, or the last one after checkpointMillis, holding the others back
+     * until the next save or flush
+     */
+    class CoalescingCheckpoint implements Checkpoint {
+        private final Checkpoint target;
+        private FetchState pending;
+        private int pages;
+        private long savedAt = System.currentTimeMillis();
+
+        CoalescingCheckpoint(Checkpoint target) {
+            this.target = target;
+        }
+
+        public synchronized void save(FetchState fetchState) {
+            pending = fetchState;
+            pages++;
+            if((checkpointPages > 0 && pages >= checkpointPages)
+                    || (checkpointMillis > 0 && System.currentTimeMillis() - savedAt >= checkpointMillis)){
+                flush();
+            }
+        }
+
+        synchronized void flush() {
+            if(pending == null) return;
+            FetchState fetchState = pending;
+            pending = null;
+            pages = 0;
+            savedAt = System.currentTimeMillis();
+            target.save(fetchState);
+        }
+    }
+
+    /**
+     * Coalesces the saves to the given checkpoint until {@link #closeCheckpoint(CoalescingCheckpoint)}
+     */
+    CoalescingCheckpoint openCheckpoint(Checkpoint target) {
+        CoalescingCheckpoint checkpoint = new CoalescingCheckpoint(target);
+        openCheckpoints.add(checkpoint);
+        return checkpoint;
+    }
+
+    /**
+     * Saves the last fetch state held back by the checkpoint
+     */
+    void closeCheckpoint(CoalescingCheckpoint checkpoint) {
+        try {
+            checkpoint.flush();
+        } finally {
+            openCheckpoints.remove(checkpoint);
+        }
+    }
+
+    /**
+     * Saves the fetch states held back by the running fetches, if they didn't complete within the drain timeout
+     */
+    @Override
+    protected void doCheckpoint() {
+        for(CoalescingCheckpoint checkpoint: openCheckpoints){
+            try {
+                checkpoint.flush();
+            } catch (RuntimeException e) {
+                logger.error("Failed saving fetch state on stop", e);
+            }
+        }
+    }
+
+    /**
+     * Fetches and delivers pages starting from the given fetch state, until the fetch state is completed or this
+     * fetcher is stopped, passing the fetch state following each delivered page to the checkpoint
+     */
+    void fetchPages(FetchState fetchState, Checkpoint checkpoint) throws Exception {
+        if(prefetchDepth > 0){
+            fetchPipelined(fetchState, checkpoint);
+            return;
+        }
+        do{
+        	//copy fetch state
+        	FetchState newFetchState = fetchState.copy();
+        	newFetchState.setStatus(Status.CONTINUE);
+        	T notification = fetch(newFetchState);
+
+            notify(notification);
+            //update fetch state
+        	fetchState = newFetchState;
+        	checkpoint.save(fetchState);
+        }while(fetchState.getStatus()==Status.CONTINUE && isRunning());
+    }
+
+    /**
+     * A fetched page: the notification and the fetch state following it, or the fetch error
+     */
+    private class Page {
+        final T notification;
+        final FetchState fetchState;
+        final Throwable error;
+
+        Page(T notification, FetchState fetchState, Throwable error) {
+            this.notification = notification;
+            this.fetchState = fetchState;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Fetches pages in a background thread, up to prefetchDepth pages ahead, while delivering them in order in the
+     * calling thread. Prefetched pages not delivered (because of a delivery failure or a stop) are discarded.
+     * The prefetcher always ends with a terminal page, the end or its failure (errors included), so the delivery
+     * never waits for a dead prefetcher.
+     */
+    private void fetchPipelined(final FetchState startState, Checkpoint checkpoint) throws Exception {
+        final BlockingQueue<Page> pages = new ArrayBlockingQueue<Page>(prefetchDepth);
+        final Page end = new Page(null, null, null);
+        Runnable prefetch = new Runnable() {
+            public void run() {
+                FetchState state = startState;
+                Page last = end;
+                try {
+                    do{
+                        FetchState newFetchState = state.copy();
+                        newFetchState.setStatus(Status.CONTINUE);
+                        pages.put(new Page(fetch(newFetchState), newFetchState, null));
+                        state = newFetchState;
+                    }while(state.getStatus()==Status.CONTINUE && isRunning());
+                } catch (InterruptedException e) {
+                    last = null; //delivery stopped
+                } catch (Throwable e) {
+                    last = new Page(null, null, e);
+                } finally {
+                    try {
+                        if(last != null) pages.put(last);
+                    } catch (InterruptedException e) {
+                        //delivery stopped
+                    }
+                }
+            }
+        };
+        String name = "MessageFetcher-prefetch-" + Thread.currentThread().getName();
+        Thread prefetcher = virtualThreads? VirtualThreadExecutor.newThread(name, prefetch): new Thread(prefetch, name);
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+        try {
+            while(true){
+                Page page = pages.take();
+                if(page == end) break;
+                if(page.error instanceof Error) throw (Error) page.error;
+                if(page.error != null) throw (Exception) page.error;
+                notify(page.notification);
+                checkpoint.save(page.fetchState);
+                if(page.fetchState.getStatus()!=Status.CONTINUE || !isRunning()) break;
+            }
+        } finally {
+            prefetcher.interrupt();
+        }
+    }
+
+    public void notify(T notification) throws ListenerNotRunningException, ProcessorUnavailableException {
+        if(notification != null && !notification.isEmpty()){
+            for(MessageListener<T> listener: messageListeners)
+                listener.receive(notification);
+            postNotify(notification);
+        }
+    }
+
+    /**
+	 * Fetches notifications using the parameters specified in the fetchState
+	 * fetchState.status should be updated to COMPLETED when no more items are found
+	 * similarly other fetch parameters must be updated accordingly for the next fetch
+	 * @param fetchState
+	 * @return
+	 * @throws Exception
+	 */
+	public abstract T fetch(FetchState fetchState) throws Exception;
+
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE;//A high value such that it's started last
+    }
+
+    /**
+     * Placeholder method to do some post-processing after notification was delivered to all listeners
+     * @param notification
+     */
+    protected void postNotify(T notification){
+
+    }
+
+    /**
+     * Optional method
+     * @param ids
+     * @return
+     */
+    public T createNotification(List<String> ids){
+        throw new RuntimeException("Method 'createNotification(List<String> ids):List' is not implemeted by this class:" + this.getClass());
+    }
+
+    /**
+     * Restores the polling state from file
+     * @return the restored state, or null if there's none (the caller uses the defaults)
+     */
+    FetchState restoreFetchState(String stateFile) {
+        try {
+        	FetchState restored = FetchState.loadFrom(stateFile);
+        	if(restored != null) return restored;
+        } catch (Exception e) {
+            logger.warn("Failed loading polling state. Using defaults..." + this.getClass().getName(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Persists the polling state to file
+     */
+    void saveFetchState(FetchState state, String stateFile) {
+        try {
+        	state.saveTo(stateFile);
+        } catch (Exception e) {
+            logger.error("Failed storing polling state.", e);
+        }
+    }
+
+    public List<MessageListener<T>> getMessageListeners() {
+        return messageListeners;
+    }
+
+    public void setMessageListeners(List<MessageListener<T>> messageListeners) {
+        this.messageListeners = messageListeners;
+    }
+
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * Sets the max number of pages fetched ahead of the page being delivered (default 0, no prefetching). When
+     * positive, {@link #fetch(FetchState)} runs in a background thread, concurrently with the delivery of the
+     * previous pages.
+     * @param prefetchDepth
+     */
+    public void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    public int getCheckpointPages() {
+        return checkpointPages;
+    }
+
+    /**
+     * Sets the number of delivered pages between saves of the fetch state (default 1, every page). 0 means the fetch
+     * state is saved only by checkpointMillis and at the end of each fetch run.
+     * @param checkpointPages
+     */
+    public void setCheckpointPages(int checkpointPages) {
+        this.checkpointPages = checkpointPages;
+    }
+
+    public long getCheckpointMillis() {
+        return checkpointMillis;
+    }
+
+    /**
+     * Sets the max millis between saves of the fetch state while pages are being delivered (default 0, no limit)
+     * @param checkpointMillis
+     */
+    public void setCheckpointMillis(long checkpointMillis) {
+        this.checkpointMillis = checkpointMillis;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Sets whether the background fetching (the prefetcher, and the shards of a {@link ShardedMessageFetcher}) runs on
+     * virtual threads, where supported (default false)
+     * @param virtualThreads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public String getFetchStateFile() {
+        return fetchStateFile;
+    }
+
+    public void setFetchStateFile(String fetchStateFile) {
+        this.fetchStateFile = fetchStateFile;
+    }
+}
@@ -1,13 +1,18 @@
 package org.simplemessaging.fetching;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.zip.CRC32;
 
 import static java.lang.Integer.parseInt;
 import static java.lang.Long.parseLong;
@@ -23,6 +28,7 @@ public class FetchState implements Cloneable{
 	// Bit of a hack so that we can persist correctly
 	private static final String INT_SUFFIX = "(int)";
 	private static final String TIME_SUFFIX = "(time)";
+	private static final String CHECKSUM_PREFIX = "#checksum="; //last line of a saved state, a comment for Properties
 	
 	// Is the Fetch of new data still going or has it ended?
 	public enum Status{
@@ -58,21 +64,73 @@ public class FetchState implements Cloneable{
 	/**
 	 * This function allows you to persist the state of the fetch so that, in the event that the fetching process crashes, you can
 	 * start the fetching right back up again and it will continue like nothing went wrong. This is the loading half of the equation.
+	 * If the file is missing but its temporary file isn't, a crash hit {@link #saveTo(String)} between deleting the old
+	 * state and renaming the new one, so the state is loaded from the temporary file, provided it ends with the checksum
+	 * of a complete save. Otherwise the temporary file is deleted, as is a leftover one next to an existing state.
 	 * @param filename
 	 * @return
 	 * @throws Exception
 	 */
 	public static FetchState loadFrom(String filename) throws Exception{
-		FetchState fetchState = new FetchState();
-		fetchState.setStatus(Status.CONTINUE);
-		
         Properties props = new Properties();
 
         File file = new File(filename);
-        if(!file.exists()){
+        File temp = new File(filename + ".tmp");
+        InputStream in;
+        if(file.exists()){
+            if(temp.exists()) temp.delete(); //left by a crash before the rename
+            in = new FileInputStream(file);
+        }else if(temp.exists()){
+            byte[] data = readFully(temp);
+            if(!isComplete(data)){
+                temp.delete(); //cut short by a crash while saving
+                return null;
+            }
+            in = new ByteArrayInputStream(data);
+        }else{
             return null;
         }
-        props.load(new FileInputStream(file));
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        return fromProperties(props);
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while((read = in.read(buffer)) >= 0) data.write(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Checks that a saved state ends with the checksum of the lines before it
+     */
+    private static boolean isComplete(byte[] data) throws IOException {
+        String text = new String(data, "ISO-8859-1");
+        int marker = text.lastIndexOf(CHECKSUM_PREFIX);
+        if(marker < 0) return false;
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, marker);
+        return text.substring(marker + CHECKSUM_PREFIX.length()).trim().equals(Long.toHexString(crc.getValue()));
+    }
+
+    /**
+     * Restores a fetch state from its params stored as properties, see {@link #toProperties()}
+     * @param props
+     * @return
+     */
+    public static FetchState fromProperties(Properties props){
+		FetchState fetchState = new FetchState();
+		fetchState.setStatus(Status.CONTINUE);
         for (Entry<Object,Object> entry : props.entrySet()) {
         	parseProperty(fetchState, (String)entry.getKey(), (String)entry.getValue());
 		}
@@ -82,16 +140,45 @@ public class FetchState implements Cloneable{
 	/**
 	 * This function allows you to persist the state of the fetch so that, in the event that the fetching process crashes, you can
 	 * start the fetching right back up again and it will continue like nothing went wrong. This is the saving half of the equation.
+	 * The state is written to a temporary file, followed by its checksum, synced to disk and renamed over the given file,
+	 * so a crash never leaves a partially written state.
 	 * @param filename
 	 * @throws Exception
 	 */
     public void saveTo(String filename) throws Exception{
+        File file = new File(filename);
+        File temp = new File(filename + ".tmp");
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        toProperties().store(data, "FetchState properties");
+        CRC32 crc = new CRC32();
+        crc.update(data.toByteArray());
+        data.write((CHECKSUM_PREFIX + Long.toHexString(crc.getValue()) + "\n").getBytes("ISO-8859-1"));
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            data.writeTo(out);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if(!temp.renameTo(file)){
+            //renaming over an existing file fails on some platforms
+            if(!file.delete() || !temp.renameTo(file))
+                throw new IOException("Failed renaming " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Stores the params as properties, keeping the type of int and date params
+     * @return
+     */
+    public Properties toProperties(){
         Properties props = new Properties();
         for(Entry<String,Object> entry: params.entrySet()){
         	storeProperty(props, entry.getKey(), entry.getValue());
         }
-        props.store(new FileOutputStream(filename), "FetchState properties");
-    }	
+        return props;
+    }
     
     private static void parseProperty(FetchState fetchState, String key, String value){
 		if(key.endsWith(INT_SUFFIX)){
@@ -0,0 +1,359 @@
+package org.simplemessaging.fetching;
+
+import org.apache.log4j.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the shards of a {@link ShardedMessageFetcher} among the nodes running it, through expiring leases stored in a
+ * database. Each node heartbeats in a nodes table, and on each {@link #acquire(List)} keeps a fair share of the shards
+ * (shards / live nodes, plus one for the first shards % live nodes nodes by id): it renews the leases it holds,
+ * releases the ones over its share and claims free or expired shards up to its share. Claims are conditional updates, so a shard is never owned by two nodes with live
+ * leases. Nodes joining or leaving are balanced out within a couple of fetch runs.
+ * <p>
+ * The fetch state of each shard is stored with its lease, so that whichever node owns the shard carries on from the
+ * last delivered page. Saving a fetch state renews the lease, and fails if the lease was lost.
+ * <p>
+ * leaseMillis must be longer than the interval between fetch runs, otherwise shards are taken over by other nodes
+ * between runs. While a shard is being fetched (see {@link #beginFetch(String)}) its lease is renewed in the
+ * background every leaseMillis / 3, so it isn't lost to slow pages or coalesced checkpoints.
+ */
+public class ShardLeaseManager {
+    private final static Logger logger = Logger.getLogger(ShardLeaseManager.class);
+
+    private DataSource dataSource;
+
+    private String tablePrefix = "SHARD_";
+
+    private String nodeId = ManagementFactory.getRuntimeMXBean().getName() + "-" + Integer.toHexString(System.identityHashCode(this));
+
+    private long leaseMillis = 60000;
+
+    private String leaseTable;
+
+    private String nodeTable;
+
+    private String fetchStateType = "CLOB"; //SQL type of the fetch state column
+
+    private final Set<String> fetching = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private ScheduledExecutorService renewer;
+
+    /**
+     * Creates the lease tables of a fetcher if they don't exist
+     * @param fetcherName
+     */
+    public synchronized void register(String fetcherName) {
+        logger.info("Registering shard leases of " + fetcherName + " for node " + nodeId);
+        leaseTable = tablePrefix + fetcherName;
+        nodeTable = tablePrefix + fetcherName + "_NODES";
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            createTable(connection, leaseTable, "(shard VARCHAR(100) NOT NULL, owner VARCHAR(100)"
+                    + ", leaseExpiry BIGINT DEFAULT 0, fetchState " + fetchStateType + ", PRIMARY KEY(shard))");
+            migrateFetchStateColumn(connection);
+            createTable(connection, nodeTable, "(node VARCHAR(100) NOT NULL, expiry BIGINT DEFAULT 0, PRIMARY KEY(node))");
+        } catch (SQLException e) {
+            logger.error("Failed registering shard leases of " + fetcherName, e);
+        } finally {
+            try {
+                if(connection!=null) connection.close();
+            } catch (SQLException e) {
+                logger.error(e);
+            }
+        }
+        startRenewer();
+    }
+
+    private void startRenewer() {
+        if(renewer != null) return;
+        renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ShardLeaseManager-renewer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Math.max(1, leaseMillis / 3);
+        renewer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    renewFetching();
+                } catch (RuntimeException e) {
+                    logger.error("Failed renewing shard leases of " + leaseTable, e); //keeps the renewal scheduled
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Widens the fetch state column of lease tables created by previous versions, which was limited to 4000 characters
+     */
+    private void migrateFetchStateColumn(Connection connection) throws SQLException {
+        int type = Types.OTHER;
+        ResultSet rs = connection.getMetaData().getColumns(null, null, leaseTable, null);
+        try {
+            while(rs.next()){
+                if("FETCHSTATE".equalsIgnoreCase(rs.getString("COLUMN_NAME"))) type = rs.getInt("DATA_TYPE");
+            }
+        } finally {
+            rs.close();
+        }
+        if(type != Types.VARCHAR) return;
+        logger.info("Changing the fetch state column of lease table " + leaseTable + " to " + fetchStateType);
+        Statement stmt = connection.createStatement();
+        try {
+            stmt.execute("ALTER TABLE \"" + leaseTable + "\" ALTER COLUMN fetchState " + fetchStateType);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private void createTable(Connection connection, String tableName, String columns) throws SQLException {
+        ResultSet tables = connection.getMetaData().getTables(null, null, tableName, null);
+        try {
+            if(tables.next()) return;
+        } finally {
+            tables.close();
+        }
+        logger.info("Shard lease table not found; creating " + tableName);
+        Statement stmt = connection.createStatement();
+        try {
+            stmt.execute("CREATE TABLE \"" + tableName + "\" " + columns);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Heartbeats this node and rebalances its leases
+     * @param shards all the shards of the fetcher
+     * @return the shards owned by this node, empty if the leases can't be checked
+     */
+    public synchronized List<String> acquire(List<String> shards) {
+        long now = System.currentTimeMillis();
+        long expiry = now + leaseMillis;
+        try {
+            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            heartbeat(jdbc, expiry);
+            addShards(jdbc, shards);
+            List<String> live = jdbc.queryForList("SELECT node FROM \"" + nodeTable + "\" WHERE expiry>? ORDER BY node",
+                    String.class, now);
+            int nodes = Math.max(1, live.size());
+            int rank = live.indexOf(nodeId);
+            int share = shards.size() / nodes + (rank >= 0 && rank < shards.size() % nodes? 1: 0);
+
+            List<String> owned = new ArrayList<String>();
+            for(String shard: shards){
+                if(jdbc.update("UPDATE \"" + leaseTable + "\" SET leaseExpiry=? WHERE shard=? AND owner=?", expiry, shard, nodeId) > 0)
+                    owned.add(shard);
+            }
+            while(owned.size() > share){
+                String shard = owned.remove(owned.size() - 1);
+                logger.info("Releasing shard " + shard + " of " + leaseTable + " to rebalance over " + nodes + " nodes");
+                release(jdbc, shard);
+            }
+            for(String shard: shards){
+                if(owned.size() >= share) break;
+                if(owned.contains(shard)) continue;
+                if(jdbc.update("UPDATE \"" + leaseTable + "\" SET owner=?, leaseExpiry=? WHERE shard=?"
+                        + " AND (owner IS NULL OR leaseExpiry<?)", nodeId, expiry, shard, now) > 0){
+                    logger.info("Node " + nodeId + " claimed shard " + shard + " of " + leaseTable);
+                    owned.add(shard);
+                }
+            }
+            return owned;
+        } catch (DataAccessException e) {
+            logger.error("Failed acquiring shard leases of " + leaseTable, e);
+            return Collections.emptyList();
+        }
+    }
+
+    private void heartbeat(JdbcTemplate jdbc, long expiry) {
+        if(jdbc.update("UPDATE \"" + nodeTable + "\" SET expiry=? WHERE node=?", expiry, nodeId) > 0) return;
+        try {
+            jdbc.update("INSERT INTO \"" + nodeTable + "\" (node, expiry) VALUES(?,?)", nodeId, expiry);
+        } catch (DataIntegrityViolationException e) {
+            jdbc.update("UPDATE \"" + nodeTable + "\" SET expiry=? WHERE node=?", expiry, nodeId);
+        }
+    }
+
+    private void addShards(JdbcTemplate jdbc, List<String> shards) {
+        Set<String> existing = new HashSet<String>(jdbc.queryForList("SELECT shard FROM \"" + leaseTable + "\"", String.class));
+        for(String shard: shards){
+            if(existing.contains(shard)) continue;
+            try {
+                jdbc.update("INSERT INTO \"" + leaseTable + "\" (shard, leaseExpiry) VALUES(?,0)", shard);
+            } catch (DataIntegrityViolationException e) {
+                //added by another node
+            }
+        }
+    }
+
+    /**
+     * Keeps the lease of a shard renewed in the background until {@link #endFetch(String)}
+     * @param shard
+     */
+    public void beginFetch(String shard) {
+        fetching.add(shard);
+    }
+
+    /**
+     * Stops renewing the lease of a shard in the background
+     * @param shard
+     */
+    public void endFetch(String shard) {
+        fetching.remove(shard);
+    }
+
+    private void renewFetching() {
+        if(fetching.isEmpty()) return;
+        long expiry = System.currentTimeMillis() + leaseMillis;
+        try {
+            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            heartbeat(jdbc, expiry);
+            for(String shard: fetching){
+                if(jdbc.update("UPDATE \"" + leaseTable + "\" SET leaseExpiry=? WHERE shard=? AND owner=?", expiry, shard, nodeId) == 0)
+                    logger.warn("Node " + nodeId + " lost the lease of shard " + shard + " of " + leaseTable + " while fetching it");
+            }
+        } catch (DataAccessException e) {
+            logger.error("Failed renewing shard leases of " + leaseTable, e);
+        }
+    }
+
+    private void release(JdbcTemplate jdbc, String shard) {
+        jdbc.update("UPDATE \"" + leaseTable + "\" SET owner=NULL, leaseExpiry=0 WHERE shard=? AND owner=?", shard, nodeId);
+    }
+
+    /**
+     * Releases all the leases of this node and removes it from the live nodes, e.g. on shutdown
+     */
+    public synchronized void release() {
+        if(leaseTable == null) return;
+        if(renewer != null){
+            renewer.shutdown();
+            renewer = null;
+        }
+        fetching.clear();
+        try {
+            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            jdbc.update("UPDATE \"" + leaseTable + "\" SET owner=NULL, leaseExpiry=0 WHERE owner=?", nodeId);
+            jdbc.update("DELETE FROM \"" + nodeTable + "\" WHERE node=?", nodeId);
+        } catch (DataAccessException e) {
+            logger.error("Failed releasing shard leases of " + leaseTable, e);
+        }
+    }
+
+    /**
+     * Loads the fetch state stored with the lease of a shard
+     * @param shard
+     * @return null if there's none
+     */
+    public FetchState loadState(String shard) {
+        List<String> states = new JdbcTemplate(dataSource).queryForList("SELECT fetchState FROM \"" + leaseTable
+                + "\" WHERE shard=?", String.class, shard);
+        if(states.isEmpty() || states.get(0) == null) return null;
+        Properties props = new Properties();
+        try {
+            props.load(new StringReader(states.get(0)));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed parsing fetch state of shard " + shard, e);
+        }
+        return FetchState.fromProperties(props);
+    }
+
+    /**
+     * Stores the fetch state of a shard and renews its lease
+     * @param shard
+     * @param fetchState
+     * @throws IllegalStateException if this node doesn't own the shard anymore
+     */
+    public void saveState(String shard, FetchState fetchState) {
+        StringWriter text = new StringWriter();
+        try {
+            fetchState.toProperties().store(text, null);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed storing fetch state of shard " + shard, e);
+        }
+        int count = new JdbcTemplate(dataSource).update("UPDATE \"" + leaseTable + "\" SET fetchState=?, leaseExpiry=?"
+                + " WHERE shard=? AND owner=?", text.toString(), System.currentTimeMillis() + leaseMillis, shard, nodeId);
+        if(count == 0) throw new IllegalStateException("Node " + nodeId + " lost the lease of shard " + shard);
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public String getTablePrefix() {
+        return tablePrefix;
+    }
+
+    public void setTablePrefix(String tablePrefix) {
+        this.tablePrefix = tablePrefix;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Sets the id of this node, unique among the nodes sharing the shards (default: process name and instance hash)
+     * @param nodeId
+     */
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public String getFetchStateType() {
+        return fetchStateType;
+    }
+
+    /**
+     * Sets the SQL type of the column holding the fetch states (default CLOB). It must fit the largest stored fetch
+     * state. Tables created with the former VARCHAR(4000) column are altered to this type on {@link #register(String)}.
+     * @param fetchStateType
+     */
+    public void setFetchStateType(String fetchStateType) {
+        this.fetchStateType = fetchStateType;
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * Sets the millis a lease (and a node heartbeat) lasts unless renewed (default 60000)
+     * @param leaseMillis
+     */
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+}
@@ -0,0 +1,249 @@
+package org.simplemessaging.fetching;
+
+import org.apache.log4j.Logger;
+import org.simplemessaging.Message;
+import org.simplemessaging.fetching.FetchState.Status;
+import org.simplemessaging.util.VirtualThreadExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Message fetcher reading a source through several independent cursors (shards), e.g. by id range, partition or
+ * content type. Each shard has its own fetch state, saved to its own file (fetchStateFile + "." + shard), and the
+ * shards are fetched in parallel on up to maxParallelShards threads, virtual ones with virtualThreads. All shards
+ * deliver to the same listeners, so
+ * {@link #notify(Message)} and {@link #postNotify(Message)} may run concurrently.
+ * <p>
+ * The fetch state of each shard holds the shard name in the {@link #SHARD_PARAM} param.
+ * <p>
+ * With a {@link ShardLeaseManager}, the shards are shared among the nodes running this fetcher: each fetch run only
+ * fetches the shards leased to this node, and the fetch states are stored in the database with the leases instead of
+ * local files.
+ * @param <T>
+ */
+public abstract class ShardedMessageFetcher<T extends Message> extends AbstractMessageFetcher<T> {
+    private final static Logger logger = Logger.getLogger(ShardedMessageFetcher.class);
+
+    public static final String SHARD_PARAM = "shard";
+
+    private int maxParallelShards = 4;
+
+    private ShardLeaseManager leaseManager;
+
+    private String fetcherName = getClass().getSimpleName();
+
+    private final Map<String, FetchState> shardStates = new ConcurrentHashMap<String, FetchState>();
+
+    private volatile Executor shardExecutor;
+
+    /**
+     * Names of the shards of the source
+     * @return
+     */
+    public abstract List<String> shards();
+
+    /**
+     * Fetches the next page of a shard, see {@link #fetch(FetchState)}
+     * @param shard
+     * @param fetchState
+     * @return
+     * @throws Exception
+     */
+    public abstract T fetch(String shard, FetchState fetchState) throws Exception;
+
+    /**
+     * Generates the default fetch state of a shard, used when its persisted state can't be restored
+     * @param shard
+     * @return
+     */
+    public abstract FetchState defaultFetchState(String shard);
+
+    @Override
+    public final T fetch(FetchState fetchState) throws Exception {
+        return fetch(fetchState.<String>getParam(SHARD_PARAM), fetchState);
+    }
+
+    /**
+     * Fetches all the shards in parallel, until each one is completed or this fetcher is stopped. A shard failing
+     * doesn't stop the others; the first failure is thrown once all the shards are done.
+     */
+    @Override
+    public void fetch() throws Exception {
+        if(!this.isRunning()){
+            logger.info("This notification fetching '" + this.getClass().getName()+ "' is not running!");
+            return;
+        }
+        if(!this.isEnabled()){
+            logger.info("This notification fetching '" + this.getClass().getName()+ "' is disabled. Skipping task.");
+            return;
+        }
+        logger.info("Running sharded notification fetching " + this.getClass().getName());
+        Exception failure = null;
+        beginWork(1);
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for(final String shard: activeShards()){
+                FutureTask<Object> result = new FutureTask<Object>(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        fetchShard(shard);
+                        return null;
+                    }
+                });
+                shardExecutor.execute(result);
+                results.add(result);
+            }
+            for(Future<?> result: results){
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    logger.error("Failed fetching shard of " + this.getClass().getName(), e.getCause());
+                    if(failure == null) failure = e.getCause() instanceof Exception? (Exception) e.getCause(): e;
+                }
+            }
+        } finally {
+            endWork(1);
+        }
+        if(failure != null) throw failure;
+        logger.info("Completed sharded notification fetching " + this.getClass().getName());
+    }
+
+    /**
+     * Shards fetched by this fetcher: all of them, or the ones leased to this node if there's a lease manager
+     * @return
+     */
+    protected List<String> activeShards() {
+        return leaseManager != null? leaseManager.acquire(shards()): shards();
+    }
+
+    private void fetchShard(final String shard) throws Exception {
+        FetchState fetchState = getShardState(shard);
+        if(fetchState == null || leaseManager != null){ //another node may have fetched the shard since
+            fetchState = loadShardState(shard);
+            if(fetchState == null){
+                fetchState = defaultFetchState(shard);
+                fetchState.setStatus(Status.CONTINUE);
+            }
+            fetchState.putParam(SHARD_PARAM, shard);
+        }
+        final CoalescingCheckpoint durable = openCheckpoint(new Checkpoint() {
+            public void save(FetchState newFetchState) {
+                saveShardState(shard, newFetchState);
+            }
+        });
+        if(leaseManager != null) leaseManager.beginFetch(shard);
+        try {
+            fetchPages(fetchState, new Checkpoint() {
+                public void save(FetchState newFetchState) {
+                    shardStates.put(shard, newFetchState);
+                    durable.save(newFetchState);
+                }
+            });
+        } finally {
+            try {
+                closeCheckpoint(durable);
+            } finally {
+                if(leaseManager != null) leaseManager.endFetch(shard);
+            }
+        }
+    }
+
+    /**
+     * Loads the persisted fetch state of a shard
+     * @param shard
+     * @return null if there's none
+     */
+    protected FetchState loadShardState(String shard) {
+        if(leaseManager != null) return leaseManager.loadState(shard);
+        return restoreFetchState(getFetchStateFile() + "." + shard);
+    }
+
+    /**
+     * Persists the fetch state of a shard after some of its pages were delivered, see checkpointPages
+     * @param shard
+     * @param fetchState
+     */
+    protected void saveShardState(String shard, FetchState fetchState) {
+        if(leaseManager != null){
+            leaseManager.saveState(shard, fetchState); //fails if the lease was lost, stopping the shard
+            return;
+        }
+        saveFetchState(fetchState, getFetchStateFile() + "." + shard);
+    }
+
+    /**
+     * Current fetch state of a shard
+     * @param shard
+     * @return null if the shard hasn't been fetched yet
+     */
+    public FetchState getShardState(String shard) {
+        return shardStates.get(shard);
+    }
+
+    @Override
+    protected void doStart() {
+        if(isVirtualThreads()){
+            shardExecutor = new VirtualThreadExecutor(maxParallelShards, "ShardedMessageFetcher");
+        }else{
+            final AtomicInteger count = new AtomicInteger();
+            shardExecutor = Executors.newFixedThreadPool(maxParallelShards, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ShardedMessageFetcher-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        if(leaseManager != null) leaseManager.register(fetcherName);
+    }
+
+    @Override
+    protected void doStop() {
+        if(shardExecutor instanceof ExecutorService) ((ExecutorService) shardExecutor).shutdown();
+        else if(shardExecutor instanceof VirtualThreadExecutor) ((VirtualThreadExecutor) shardExecutor).shutdown();
+        if(leaseManager != null) leaseManager.release();
+    }
+
+    public int getMaxParallelShards() {
+        return maxParallelShards;
+    }
+
+    /**
+     * Sets the max number of shards fetched at once (default 4)
+     * @param maxParallelShards
+     */
+    public void setMaxParallelShards(int maxParallelShards) {
+        this.maxParallelShards = maxParallelShards;
+    }
+
+    public ShardLeaseManager getLeaseManager() {
+        return leaseManager;
+    }
+
+    public void setLeaseManager(ShardLeaseManager leaseManager) {
+        this.leaseManager = leaseManager;
+    }
+
+    public String getFetcherName() {
+        return fetcherName;
+    }
+
+    /**
+     * Sets the name of this fetcher in the lease tables, the same in all the nodes (default: the simple class name)
+     * @param fetcherName
+     */
+    public void setFetcherName(String fetcherName) {
+        this.fetcherName = fetcherName;
+    }
+}
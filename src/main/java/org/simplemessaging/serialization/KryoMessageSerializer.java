@@ -0,0 +1,233 @@
+package org.simplemessaging.serialization;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.SerializationException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.serialize.IntSerializer;
+import org.simplemessaging.Message;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Modifier;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Kryo based serializer. Kryo instances are not thread-safe, so each call borrows one from a small pool and returns it
+ * when done (for {@link #serialise(Message)}, when the buffer is released). Up to poolSize idle instances are kept;
+ * calls finding none idle create a new one, so callers never wait for each other.
+ * Each instance has its own output buffer, which is reused and doubled on demand up to maxBufferSize. A buffer grown
+ * over maxRetainedBufferSize is dropped when its instance is returned, so rare large messages don't pin memory.
+ * <p>
+ * JDK lists that can't be created empty, such as Arrays.asList() and subList() views, are serialised by their elements,
+ * without reflection into java.util, so messages holding them can be logged on Java 9 and later, where those fields
+ * are not accessible. Views other than Arrays.asList() are read back as ArrayLists.
+ */
+public class KryoMessageSerializer implements MessageSerializer {
+
+    private int initialBufferSize = 4 * 1024;
+
+    private int maxBufferSize = 16 * 1024 * 1024;
+
+    private int maxRetainedBufferSize = 256 * 1024; //larger buffers are dropped when their instance is returned
+
+    private volatile BlockingQueue<KryoContext> pool = new LinkedBlockingQueue<KryoContext>(8); //idle instances
+
+    public MessageBuffer serialise(Message message) {
+        KryoContext context = acquire();
+        try {
+            context.write(message);
+            return context.output;
+        } catch (RuntimeException e) {
+            release(context);
+            throw e;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Message> T deserialise(byte[] data) {
+        KryoContext context = acquire();
+        try {
+            return (T) context.kryo.readClassAndObject(ByteBuffer.wrap(data));
+        } finally {
+            release(context);
+        }
+    }
+
+    /**
+     * Creates a configured Kryo instance. Subclasses may override it to register custom serializers.
+     * @return
+     */
+    protected Kryo createKryo() {
+        Kryo kryo = new Kryo(){
+            public Serializer newSerializer(Class aClass) {
+                if (isListView(aClass)) return new ListCopySerializer(this);
+                return super.newSerializer(aClass);
+            }
+        };
+        kryo.register(Arrays.asList("").getClass(), new ArraysAsListSerializer(kryo));
+        kryo.setRegistrationOptional(true);
+        return kryo;
+    }
+
+    /**
+     * JDK lists that can't be created empty, such as subList() views and unmodifiable lists
+     */
+    private static boolean isListView(Class<?> type) {
+        if (!List.class.isAssignableFrom(type) || !type.getName().startsWith("java.")) return false;
+        try {
+            type.getConstructor();
+            return !Modifier.isPublic(type.getModifiers());
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Serialises the array backing an Arrays.asList() list: its length, component type and elements
+     */
+    private static class ArraysAsListSerializer extends Serializer {
+        private final Kryo kryo;
+
+        ArraysAsListSerializer(Kryo kryo) {
+            this.kryo = kryo;
+        }
+
+        public void writeObjectData(ByteBuffer buffer, Object object) {
+            Object[] array = ((List<?>) object).toArray(); //a copy of the backing array, typed before Java 9
+            IntSerializer.put(buffer, array.length, true);
+            kryo.writeClass(buffer, array.getClass().getComponentType());
+            for (Object element : array) {
+                kryo.writeClassAndObject(buffer, element);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> T readObjectData(ByteBuffer buffer, Class<T> type) {
+            int length = IntSerializer.get(buffer, true);
+            Object[] array = (Object[]) Array.newInstance(kryo.readClass(buffer).getType(), length);
+            for (int i = 0; i < length; i++) {
+                array[i] = kryo.readClassAndObject(buffer);
+            }
+            return (T) Arrays.asList(array);
+        }
+    }
+
+    /**
+     * Serialises a JDK list whose fields are not accessible (e.g. a subList() view) by its elements, reading it back
+     * as an ArrayList
+     */
+    private static class ListCopySerializer extends Serializer {
+        private final Kryo kryo;
+
+        ListCopySerializer(Kryo kryo) {
+            this.kryo = kryo;
+        }
+
+        public void writeObjectData(ByteBuffer buffer, Object object) {
+            List<?> list = (List<?>) object;
+            IntSerializer.put(buffer, list.size(), true);
+            for (Object element : list) {
+                kryo.writeClassAndObject(buffer, element);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> T readObjectData(ByteBuffer buffer, Class<T> type) {
+            int size = IntSerializer.get(buffer, true);
+            List<Object> list = new ArrayList<Object>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(kryo.readClassAndObject(buffer));
+            }
+            return (T) list;
+        }
+    }
+
+    private KryoContext acquire() {
+        BlockingQueue<KryoContext> pool = this.pool;
+        KryoContext context = pool != null ? pool.poll() : null;
+        return context != null ? context : new KryoContext();
+    }
+
+    private void release(KryoContext context) {
+        if (context.buffer.capacity() > maxRetainedBufferSize) context.buffer = ByteBuffer.allocate(initialBufferSize);
+        BlockingQueue<KryoContext> pool = this.pool;
+        if (pool != null) pool.offer(context); //dropped when the pool is full
+    }
+
+    /**
+     * A Kryo instance with its output buffer
+     */
+    private class KryoContext {
+        final Kryo kryo = createKryo();
+        final MessageBuffer output = new MessageBuffer() {
+            @Override
+            public void release() {
+                KryoMessageSerializer.this.release(KryoContext.this);
+            }
+        };
+        ByteBuffer buffer = ByteBuffer.allocate(initialBufferSize);
+
+        void write(Message message) {
+            while (true) {
+                buffer.clear();
+                try {
+                    kryo.writeClassAndObject(buffer, message);
+                    output.set(buffer.array(), buffer.position());
+                    return;
+                } catch (SerializationException e) {
+                    if (!e.causedBy(BufferOverflowException.class) || buffer.capacity() >= maxBufferSize)
+                        throw e;
+                    buffer = ByteBuffer.allocate((int) Math.min(2L * buffer.capacity(), maxBufferSize));
+                    Kryo.getContext().reset();
+                }
+            }
+        }
+    }
+
+    public int getInitialBufferSize() {
+        return initialBufferSize;
+    }
+
+    public void setInitialBufferSize(int initialBufferSize) {
+        this.initialBufferSize = initialBufferSize;
+    }
+
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    public void setMaxBufferSize(int maxBufferSize) {
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    public int getPoolSize() {
+        BlockingQueue<KryoContext> pool = this.pool;
+        return pool != null ? pool.size() + pool.remainingCapacity() : 0;
+    }
+
+    /**
+     * Sets the max number of idle Kryo instances kept for reuse (default 8). 0 creates an instance per call.
+     * @param poolSize
+     */
+    public void setPoolSize(int poolSize) {
+        this.pool = poolSize > 0 ? new LinkedBlockingQueue<KryoContext>(poolSize) : null;
+    }
+
+    public int getMaxRetainedBufferSize() {
+        return maxRetainedBufferSize;
+    }
+
+    /**
+     * Sets the max size of the output buffer kept by an idle Kryo instance (default 256KB). Larger buffers, grown for a
+     * large message, are dropped when the instance is returned.
+     * @param maxRetainedBufferSize
+     */
+    public void setMaxRetainedBufferSize(int maxRetainedBufferSize) {
+        this.maxRetainedBufferSize = maxRetainedBufferSize;
+    }
+}
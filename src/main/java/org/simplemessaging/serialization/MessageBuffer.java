@@ -0,0 +1,57 @@
+package org.simplemessaging.serialization;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * A serialised message held in a buffer owned by a {@link MessageSerializer}. Only the first {@link #getLength()} bytes
+ * of the array are valid. The buffer is handed back to its serializer by {@link #release()}.
+ */
+public class MessageBuffer {
+    private byte[] array;
+    private int length;
+
+    protected MessageBuffer() {
+    }
+
+    public MessageBuffer(byte[] array, int length) {
+        set(array, length);
+    }
+
+    protected void set(byte[] array, int length) {
+        this.array = array;
+        this.length = length;
+    }
+
+    public byte[] getArray() {
+        return array;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Reads the serialised message without copying the buffer
+     * @return
+     */
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(array, 0, length);
+    }
+
+    /**
+     * Copies the serialised message into a new array
+     * @return
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[length];
+        System.arraycopy(array, 0, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * Returns the buffer to its serializer
+     */
+    public void release() {
+    }
+}
@@ -0,0 +1,25 @@
+package org.simplemessaging.serialization;
+
+import org.simplemessaging.Message;
+
+/**
+ * Converts messages to and from their binary form for logging. Implementations must be thread-safe.
+ */
+public interface MessageSerializer {
+
+    /**
+     * Serialises the message into a reusable buffer. The returned buffer must be released once its content has been
+     * consumed, and must not be used afterwards.
+     * @param message
+     * @return
+     */
+    MessageBuffer serialise(Message message);
+
+    /**
+     * Restores a message from its serialised form
+     * @param data
+     * @param <T>
+     * @return
+     */
+    <T extends Message> T deserialise(byte[] data);
+}
@@ -2,17 +2,27 @@ package org.simplemessaging.util;
 
 import org.springframework.context.SmartLifecycle;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Created by IntelliJ IDEA.
  * User: RinconJ
  * Date: 12/05/11
  * Time: 3:07 PM
  * To change this template use File | Settings | File Templates.
+ * <p>
+ * Subclasses track their in-flight work with {@link #beginWork(int)} and {@link #endWork(int)}. On stop, the component
+ * stops taking new work first (isRunning() turns false), then waits up to drainTimeout millis for the in-flight work to
+ * complete, and calls {@link #doCheckpoint()} if some of it is still unfinished, before {@link #doStop()}.
  */
 public class AbstractSmartLifeCycle implements SmartLifecycle{
 
-    private boolean running=false;
+    private volatile boolean running=false;
     private boolean enabled=true;
+    private long drainTimeout=0; //max millis to wait for in-flight work on stop. 0 means don't wait
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Object drainLock = new Object();
 
     @Override
     public boolean isAutoStartup() {
@@ -21,7 +31,7 @@ public class AbstractSmartLifeCycle implements SmartLifecycle{
 
     @Override
     public void stop(Runnable runnable) {
-        running = false;
+        stop();
         runnable.run();
     }
 
@@ -35,6 +45,8 @@ public class AbstractSmartLifeCycle implements SmartLifecycle{
     @Override
     public void stop() {
         running = false;
+        if(!awaitDrained(drainTimeout)) doCheckpoint();
+        doStop();
     }
 
     @Override
@@ -51,6 +63,77 @@ public class AbstractSmartLifeCycle implements SmartLifecycle{
 
     }
 
+    protected void doStop(){
+
+    }
+
+    /**
+     * Called on stop when the in-flight work didn't complete within the drain timeout, to leave it in a state that can
+     * be resumed on the next start
+     */
+    protected void doCheckpoint(){
+
+    }
+
+    /**
+     * Records units of work (e.g. message parts) accepted and not completed yet
+     * @param count
+     */
+    protected void beginWork(int count){
+        inFlight.addAndGet(count);
+    }
+
+    /**
+     * Records units of work completed (or abandoned)
+     * @param count
+     */
+    protected void endWork(int count){
+        if(inFlight.addAndGet(-count)<=0){
+            synchronized (drainLock){
+                drainLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Forgets the work in flight, e.g. on start, when the work left by a previous run is not going to complete
+     */
+    protected void resetWork(){
+        inFlight.set(0);
+        synchronized (drainLock){
+            drainLock.notifyAll();
+        }
+    }
+
+    /**
+     * Number of units of work accepted and not completed yet
+     * @return
+     */
+    public int getInFlight(){
+        return inFlight.get();
+    }
+
+    /**
+     * Waits until there's no work in flight
+     * @param timeout max millis to wait
+     * @return true if there's no work in flight
+     */
+    protected boolean awaitDrained(long timeout){
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (drainLock){
+            long wait;
+            while(inFlight.get()>0 && (wait = deadline - System.currentTimeMillis())>0){
+                try {
+                    drainLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return inFlight.get()<=0;
+    }
+
     public void setEnabled(boolean enabled) {
         this.enabled = enabled;
     }
@@ -58,4 +141,16 @@ public class AbstractSmartLifeCycle implements SmartLifecycle{
     public boolean isEnabled() {
         return enabled;
     }
+
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * Sets the max millis to wait on stop for the in-flight work to complete (default 0, don't wait)
+     * @param drainTimeout
+     */
+    public void setDrainTimeout(long drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
 }
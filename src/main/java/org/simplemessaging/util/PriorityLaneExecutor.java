@@ -0,0 +1,156 @@
+package org.simplemessaging.util;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executor with weighted lanes. At most 'workers' tasks are passed on to the underlying executor at once (usually its
+ * pool size, so that its own queue stays empty); whenever a worker is free, the next task is taken from the non-empty
+ * lanes by smooth weighted round robin. Each busy lane gets a share of the workers proportional to its weight, and
+ * an idle lane's share goes to the others. A lane of weight 0 only gets workers when all the weighted lanes are idle.
+ * <p>
+ * Tasks rejected by the underlying executor stay queued, and are retried when another task is executed or completes.
+ */
+public class PriorityLaneExecutor {
+    final static Logger logger = Logger.getLogger(PriorityLaneExecutor.class);
+
+    private final Executor executor;
+
+    private final int workers;
+
+    private final int[] weights;
+
+    private final int[] credits;
+
+    private final List<BlockingDeque<Runnable>> lanes;
+
+    private int inFlight;
+
+    /**
+     * @param executor
+     * @param workers max tasks passed on at once
+     * @param weights weight of each lane, 0 or more
+     * @throws IllegalArgumentException if there are no workers or a weight is negative
+     */
+    public PriorityLaneExecutor(Executor executor, int workers, int[] weights) {
+        if (workers <= 0) throw new IllegalArgumentException("workers must be positive: " + workers);
+        for (int weight : weights) {
+            if (weight < 0) throw new IllegalArgumentException("Lane weights can't be negative: " + weight);
+        }
+        this.executor = executor;
+        this.workers = workers;
+        this.weights = weights.clone();
+        this.credits = new int[weights.length];
+        this.lanes = new ArrayList<BlockingDeque<Runnable>>(weights.length);
+        for (int i = 0; i < weights.length; i++) {
+            lanes.add(new LinkedBlockingDeque<Runnable>());
+        }
+    }
+
+    /**
+     * Queues a task in a lane
+     * @param lane
+     * @param task
+     */
+    public void execute(int lane, Runnable task) {
+        lanes.get(lane).add(task);
+        try {
+            drain();
+        } catch (RejectedExecutionException e) {
+            boolean removed;
+            synchronized (this) {
+                removed = lanes.get(lane).remove(task);
+            }
+            if (removed) throw e; //otherwise it was passed on before the rejection
+            logger.error("Task rejected by the underlying executor", e);
+        }
+    }
+
+    /**
+     * Number of tasks waiting in a lane
+     * @param lane
+     * @return
+     */
+    public int getQueued(int lane) {
+        return lanes.get(lane).size();
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            int lane;
+            synchronized (this) {
+                if (inFlight >= workers) return;
+                lane = nextLane();
+                if (lane < 0) return;
+                task = lanes.get(lane).poll();
+                inFlight++;
+            }
+            try {
+                executor.execute(new Completion(task));
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    inFlight--;
+                    lanes.get(lane).addFirst(task); //retried by the next execution or completion
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Smooth weighted round robin over the non-empty lanes, or the first non-empty lane of weight 0 if all the
+     * weighted lanes are empty
+     * @return the lane of the next task, -1 if there are no tasks
+     */
+    private int nextLane() {
+        int total = 0;
+        int selected = -1;
+        int idle = -1;
+        for (int i = 0; i < lanes.size(); i++) {
+            if (lanes.get(i).isEmpty()) continue;
+            if (weights[i] == 0) {
+                if (idle < 0) idle = i;
+                continue;
+            }
+            credits[i] += weights[i];
+            total += weights[i];
+            if (selected < 0 || credits[i] > credits[selected]) selected = i;
+        }
+        if (selected < 0) return idle;
+        credits[selected] -= total;
+        return selected;
+    }
+
+    /**
+     * Runs a task and frees its worker
+     */
+    private class Completion implements Runnable {
+        private final Runnable task;
+
+        Completion(Runnable task) {
+            this.task = task;
+        }
+
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                synchronized (PriorityLaneExecutor.this) {
+                    inFlight--;
+                }
+                try {
+                    drain();
+                } catch (RejectedExecutionException e) {
+                    logger.error("Task rejected by the underlying executor", e);
+                }
+            }
+        }
+    }
+}
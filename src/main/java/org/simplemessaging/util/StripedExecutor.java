@@ -0,0 +1,120 @@
+package org.simplemessaging.util;
+
+import org.apache.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executor that runs tasks with the same key in submission order, one at a time, while tasks of different keys run in
+ * parallel. Keys are hashed into a fixed number of lanes; each lane runs its tasks serially on the underlying executor,
+ * yielding the thread after maxRunsPerTurn tasks so busy lanes don't starve the others.
+ */
+public class StripedExecutor implements Executor {
+    final static Logger logger = Logger.getLogger(StripedExecutor.class);
+
+    private final Executor executor;
+
+    private final Lane[] lanes;
+
+    private int maxRunsPerTurn = 16;
+
+    public StripedExecutor(Executor executor, int stripes) {
+        this.executor = executor;
+        this.lanes = new Lane[stripes];
+        for (int i = 0; i < stripes; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    /**
+     * Runs an unordered task on the underlying executor
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Runs a task after all the tasks previously submitted with a key in the same lane
+     * @param key null to run the task unordered
+     * @param task
+     */
+    public void execute(Object key, Runnable task) {
+        if (key == null) executor.execute(task);
+        else lanes[laneOf(key)].execute(task);
+    }
+
+    /**
+     * Lane of a key. Tasks of keys in the same lane are run in order
+     * @param key
+     * @return
+     */
+    public int laneOf(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return (h & 0x7fffffff) % lanes.length;
+    }
+
+    public int getStripes() {
+        return lanes.length;
+    }
+
+    public int getMaxRunsPerTurn() {
+        return maxRunsPerTurn;
+    }
+
+    public void setMaxRunsPerTurn(int maxRunsPerTurn) {
+        this.maxRunsPerTurn = maxRunsPerTurn;
+    }
+
+    /**
+     * Serial queue of tasks. At most one runner of a lane is scheduled on the underlying executor at any time
+     */
+    private class Lane implements Runnable {
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            try {
+                schedule();
+            } catch (RejectedExecutionException e) {
+                if (tasks.remove(task)) throw e; //otherwise it was taken by a runner
+            }
+        }
+
+        void schedule() {
+            if (tasks.isEmpty() || !scheduled.compareAndSet(false, true)) return;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+
+        public void run() {
+            try {
+                Runnable task;
+                for (int i = 0; i < maxRunsPerTurn && (task = tasks.poll()) != null; i++) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.error("Failed running task " + task, e);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                try {
+                    schedule();
+                } catch (RejectedExecutionException e) {
+                    logger.error("Failed rescheduling lane with " + tasks.size() + " pending tasks", e);
+                }
+            }
+        }
+    }
+}
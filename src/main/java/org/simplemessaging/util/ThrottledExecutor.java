@@ -0,0 +1,211 @@
+package org.simplemessaging.util;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor that limits the tasks passed on to another executor, both in rate (token bucket of maxRate tasks per
+ * second, holding up to burst tokens) and in number of tasks running at once (maxConcurrent). Throttled tasks wait in
+ * an unbounded queue of this executor, without holding any thread of the underlying executor.
+ * <p>
+ * Tasks rejected by the underlying executor are put back in the queue and retried later, unless this executor or the
+ * underlying one was shut down, in which case they are dropped and the failure is logged.
+ */
+public class ThrottledExecutor implements Executor {
+    final static Logger logger = Logger.getLogger(ThrottledExecutor.class);
+
+    private static final long REJECTION_DELAY = 100;
+
+    private final Executor executor;
+
+    private final int maxConcurrent;
+
+    private final double maxRate;
+
+    private final double burst;
+
+    private final BlockingDeque<Runnable> queue = new LinkedBlockingDeque<Runnable>();
+
+    private final ScheduledExecutorService timer;
+
+    private int inFlight;
+
+    private double tokens;
+
+    private long refilledAt = System.nanoTime();
+
+    private boolean drainScheduled;
+
+    private volatile boolean shutdown;
+
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            synchronized (ThrottledExecutor.this) {
+                drainScheduled = false;
+            }
+            drain();
+        }
+    };
+
+    /**
+     * @param executor
+     * @param maxConcurrent max tasks running at once, 0 means unlimited
+     * @param maxRate max tasks started per second, 0 means unlimited
+     * @param burst max tasks started at once after an idle period, 0 means maxRate (at least 1)
+     */
+    public ThrottledExecutor(Executor executor, int maxConcurrent, double maxRate, double burst) {
+        this.executor = executor;
+        this.maxConcurrent = maxConcurrent;
+        this.maxRate = maxRate;
+        this.burst = burst > 0 ? burst : Math.max(1, maxRate);
+        this.tokens = this.burst;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ThrottledExecutor-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param task
+     * @throws RejectedExecutionException if this executor was shut down
+     */
+    public void execute(Runnable task) {
+        if (shutdown) throw new RejectedExecutionException("Throttled executor shut down");
+        queue.add(task);
+        drain();
+    }
+
+    /**
+     * Number of tasks waiting for a permit
+     * @return
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Number of tasks passed on and not completed yet
+     * @return
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Stops the timer and rejects new tasks. Queued tasks are removed without being run; tasks already passed on
+     * complete normally.
+     * @return the queued tasks
+     */
+    public List<Runnable> shutdown() {
+        shutdown = true;
+        timer.shutdownNow();
+        List<Runnable> dropped = new ArrayList<Runnable>();
+        queue.drainTo(dropped);
+        return dropped;
+    }
+
+    /**
+     * Passes on queued tasks while there are permits
+     */
+    private void drain() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                if (queue.isEmpty() || (maxConcurrent > 0 && inFlight >= maxConcurrent)) return;
+                long wait = acquireToken();
+                if (wait > 0) {
+                    scheduleDrain(wait);
+                    return;
+                }
+                task = queue.poll();
+                if (task == null) return;
+                inFlight++;
+            }
+            try {
+                executor.execute(new Completion(task));
+            } catch (RejectedExecutionException e) {
+                if (shutdown || isDelegateShutdown()) {
+                    logger.error("Task rejected by a shut down executor, dropping it: " + task, e);
+                    synchronized (this) {
+                        inFlight--;
+                    }
+                    continue;
+                }
+                logger.warn("Task rejected, retrying in " + REJECTION_DELAY + "ms", e);
+                synchronized (this) {
+                    inFlight--;
+                    queue.addFirst(task);
+                    scheduleDrain(TimeUnit.MILLISECONDS.toNanos(REJECTION_DELAY));
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean isDelegateShutdown() {
+        if (executor instanceof VirtualThreadExecutor) return ((VirtualThreadExecutor) executor).isShutdown();
+        return executor instanceof ExecutorService && ((ExecutorService) executor).isShutdown();
+    }
+
+    private void scheduleDrain(long nanos) {
+        if (drainScheduled) return;
+        drainScheduled = true;
+        try {
+            timer.schedule(drainTask, nanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            drainScheduled = false; //shut down
+        }
+    }
+
+    /**
+     * Takes a token from the bucket
+     * @return 0 if a token was taken, otherwise the nanos until the next token is available
+     */
+    private long acquireToken() {
+        if (maxRate <= 0) return 0;
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * maxRate / 1e9);
+        refilledAt = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) ((1 - tokens) * 1e9 / maxRate));
+    }
+
+    /**
+     * Runs a task and releases its concurrency permit
+     */
+    private class Completion implements Runnable {
+        private final Runnable task;
+
+        Completion(Runnable task) {
+            this.task = task;
+        }
+
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                synchronized (ThrottledExecutor.this) {
+                    inFlight--;
+                }
+                drain();
+            }
+        }
+    }
+}
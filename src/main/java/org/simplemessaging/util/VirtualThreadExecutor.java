@@ -0,0 +1,166 @@
+package org.simplemessaging.util;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor that runs tasks on virtual threads, with at most maxConcurrent tasks running at once, so blocking tasks
+ * (e.g. synchronous processors and JDBC calls) scale without sizing a thread pool. A thread is only started when a
+ * permit is free; tasks over the limit wait in a queue and are run by the threads finishing their tasks, so there are
+ * never more than maxConcurrent threads. After {@link #shutdown()} new tasks are rejected, while the queued ones still
+ * run.
+ * <p>
+ * Virtual threads are looked up reflectively, so this class builds for older targets. On JVMs without virtual threads
+ * (before Java 21) the same threads are platform daemon threads, which makes it a pool bounded to maxConcurrent
+ * threads that exit when idle; maxConcurrent is then required.
+ */
+public class VirtualThreadExecutor implements Executor {
+    final static Logger logger = Logger.getLogger(VirtualThreadExecutor.class);
+
+    private final ThreadFactory threadFactory;
+
+    private final Semaphore permits;
+
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+
+    private volatile boolean shutdown;
+
+    /**
+     * @param maxConcurrent max tasks running at once, 0 means unlimited (only with virtual threads)
+     * @param name prefix of the thread names
+     * @throws IllegalStateException if there are no virtual threads and maxConcurrent is unlimited
+     */
+    public VirtualThreadExecutor(int maxConcurrent, String name) {
+        this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+        ThreadFactory factory = virtualThreadFactory(name);
+        if (factory == null) {
+            if (permits == null)
+                throw new IllegalStateException("Virtual threads not supported by this JVM, maxConcurrent must be set for " + name);
+            logger.warn("Virtual threads not supported by this JVM, using up to " + maxConcurrent + " platform threads for " + name);
+            factory = platformThreadFactory(name);
+        }
+        this.threadFactory = factory;
+    }
+
+    /**
+     * @param task
+     * @throws RejectedExecutionException if this executor was shut down
+     */
+    public void execute(Runnable task) {
+        if (shutdown) throw new RejectedExecutionException("Virtual thread executor shut down");
+        if (permits == null) {
+            start(task);
+            return;
+        }
+        queue.offer(task);
+        startQueued();
+    }
+
+    /**
+     * Starts threads for the queued tasks while there are free permits
+     */
+    private void startQueued() {
+        while (!queue.isEmpty() && permits.tryAcquire()) {
+            Runnable task = queue.poll();
+            if (task == null) {
+                permits.release();
+                continue;
+            }
+            try {
+                start(task);
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+    }
+
+    private void start(final Runnable first) {
+        Thread thread = threadFactory.newThread(new Runnable() {
+            public void run() {
+                try {
+                    Runnable task = first;
+                    while (task != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            logger.error("Task failed in " + Thread.currentThread().getName(), e);
+                        }
+                        task = permits != null ? queue.poll() : null;
+                    }
+                } finally {
+                    if (permits != null) {
+                        permits.release();
+                        startQueued(); //tasks queued after the last poll
+                    }
+                }
+            }
+        });
+        if (thread == null) throw new RejectedExecutionException("Failed creating a thread for " + first);
+        thread.start();
+    }
+
+    /**
+     * Rejects new tasks. Queued and running tasks complete normally, and the threads exit once the queue is empty.
+     */
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * @return true if tasks run on virtual threads
+     */
+    public static boolean isSupported() {
+        return virtualThreadFactory("probe") != null;
+    }
+
+    /**
+     * Creates a single unstarted thread, virtual if supported and a platform daemon thread otherwise
+     * @param name
+     * @param task
+     * @return
+     */
+    public static Thread newThread(String name, Runnable task) {
+        ThreadFactory factory = virtualThreadFactory(name);
+        if (factory == null) factory = platformThreadFactory(name);
+        return factory.newThread(task);
+    }
+
+    /**
+     * Thread.ofVirtual().name(name + "-", 0).factory(), or null if there are no virtual threads
+     */
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method naming = builderClass.getMethod("name", String.class, long.class);
+            builder = naming.invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
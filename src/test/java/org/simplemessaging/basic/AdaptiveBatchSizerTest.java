@@ -0,0 +1,62 @@
+package org.simplemessaging.basic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class AdaptiveBatchSizerTest {
+    AdaptiveBatchSizer sizer;
+
+    @Before
+    public void before() {
+        sizer = new AdaptiveBatchSizer();
+        sizer.setMinBatchSize(2);
+        sizer.setMaxBatchSize(8);
+        sizer.setInitialBatchSize(4);
+        sizer.setWindowSize(10);
+    }
+
+    private void window(int size, long nanosPerItem, int failures) {
+        for (int i = 0; i < 10; i++) {
+            sizer.record(size, size * nanosPerItem, i < failures);
+        }
+    }
+
+    @Test
+    public void testGrowsWhileThroughputImproves() {
+        assertEquals(4, sizer.getBatchSize());
+        for (int i = 0; i < 10; i++) {
+            window(sizer.getBatchSize(), 1000 - 10 * i, 0);
+        }
+        assertEquals(8, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testReversesWhenThroughputDrops() {
+        window(4, 1000, 0);
+        assertEquals(5, sizer.getBatchSize());
+        window(5, 2000, 0);
+        assertEquals(4, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testShrinksOnFailures() {
+        window(4, 1000, 0);
+        window(5, 900, 0);
+        assertEquals(6, sizer.getBatchSize());
+        window(6, 900, 5);
+        assertEquals(3, sizer.getBatchSize());
+        window(3, 900, 5);
+        assertEquals(2, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testShrinksOnLatency() {
+        sizer.setMaxPartLatency(1);
+        window(4, 1000000, 0);
+        assertEquals(2, sizer.getBatchSize());
+    }
+}
@@ -0,0 +1,80 @@
+package org.simplemessaging.basic;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.simplemessaging.MessageProcessor;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class CircuitBreakerTest {
+    CircuitBreaker breaker;
+    int checks;
+    boolean up = true;
+    MessageProcessor<TestMessage> processor = new MessageProcessor<TestMessage>() {
+        public void process(TestMessage message) {
+        }
+
+        public boolean isAvailable() {
+            checks++;
+            return up;
+        }
+    };
+
+    @Before
+    public void before() {
+        breaker = new CircuitBreaker();
+        breaker.setAvailabilityTtl(60000);
+        breaker.setMinCalls(4);
+        breaker.setFailureRatio(0.5);
+        breaker.setOpenMillis(50);
+    }
+
+    @Test
+    public void testCachesAvailability() {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(breaker.isAvailable(processor));
+        }
+        assertEquals(1, checks);
+    }
+
+    @Test
+    public void testOpensOnFailuresAndProbes() throws Exception {
+        assertTrue(breaker.isAvailable(processor));
+        breaker.record(false);
+        breaker.record(true);
+        breaker.record(true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.record(false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.isAvailable(processor));
+        assertEquals(1, checks);
+
+        Thread.sleep(60);
+        assertTrue(breaker.isAvailable(processor)); //trial message
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.isAvailable(processor));
+        breaker.record(true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(60);
+        assertTrue(breaker.isAvailable(processor));
+        breaker.record(false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.isAvailable(processor));
+        assertEquals(3, checks);
+    }
+
+    @Test
+    public void testOpensWhenUnavailable() throws Exception {
+        up = false;
+        assertFalse(breaker.isAvailable(processor));
+        assertFalse(breaker.isAvailable(processor));
+        assertEquals(1, checks);
+        up = true;
+        Thread.sleep(60);
+        assertTrue(breaker.isAvailable(processor));
+        assertEquals(2, checks);
+    }
+}
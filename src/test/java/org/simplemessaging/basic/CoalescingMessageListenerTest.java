@@ -0,0 +1,150 @@
+package org.simplemessaging.basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.simplemessaging.MessageListener;
+import org.simplemessaging.MessageMerger;
+import org.simplemessaging.ProcessorUnavailableException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class CoalescingMessageListenerTest {
+    CoalescingMessageListener<TestMessage> coalescer;
+    List<TestMessage> received = Collections.synchronizedList(new ArrayList<TestMessage>());
+    volatile boolean unavailable;
+
+    @Before
+    public void before() {
+        coalescer = new CoalescingMessageListener<TestMessage>();
+        coalescer.setMaxSize(4);
+        coalescer.setLingerMillis(50);
+        coalescer.setMessageListener(new MessageListener<TestMessage>() {
+            public void receive(TestMessage message) throws ProcessorUnavailableException {
+                if (unavailable) throw new ProcessorUnavailableException("unavailable");
+                received.add(message);
+            }
+        });
+        coalescer.setMessageMerger(new MessageMerger<TestMessage>() {
+            public TestMessage merge(List<TestMessage> messages) {
+                TestMessage merged = new TestMessage(messages.get(0).getId());
+                for (TestMessage message : messages) merged.getItems().addAll(message.getItems());
+                return merged;
+            }
+        });
+        coalescer.start();
+    }
+
+    @After
+    public void after() {
+        coalescer.stop();
+    }
+
+    @Test
+    public void testMergesUpToMaxSize() throws Exception {
+        coalescer.receive(new TestMessage(1, 10));
+        coalescer.receive(new TestMessage(2, 20, 21));
+        assertTrue(received.isEmpty());
+        coalescer.receive(new TestMessage(3, 30, 31));
+        assertEquals(1, received.size());
+        assertEquals(Arrays.asList(10, 20, 21), received.get(0).getItems());
+
+        coalescer.receive(new TestMessage(4, 40, 41, 42, 43, 44));
+        assertEquals(3, received.size());
+        assertEquals(Arrays.asList(30, 31), received.get(1).getItems());
+        assertEquals(4, received.get(2).getId());
+    }
+
+    @Test
+    public void testFlushesAfterLinger() throws Exception {
+        coalescer.receive(new TestMessage(1, 10));
+        coalescer.receive(new TestMessage(2, 20));
+        long start = System.currentTimeMillis();
+        while (received.isEmpty() && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, received.size());
+        assertEquals(Arrays.asList(10, 20), received.get(0).getItems());
+    }
+
+    @Test
+    public void testFlushesOnStop() throws Exception {
+        coalescer.setLingerMillis(60000);
+        coalescer.receive(new TestMessage(1, 10));
+        coalescer.stop();
+        assertEquals(1, received.size());
+        assertEquals(1, received.get(0).getId());
+    }
+
+    private JournalMessageLogger<TestMessage> restartWithLogger(File directory) {
+        JournalMessageLogger<TestMessage> messageLogger = new JournalMessageLogger<TestMessage>();
+        messageLogger.setDirectory(directory.getPath());
+        messageLogger.setCompactionInterval(0);
+        coalescer.stop();
+        coalescer.setLingerMillis(60000);
+        coalescer.setMessageLogger(messageLogger);
+        coalescer.start();
+        return messageLogger;
+    }
+
+    private void delete(File directory) {
+        File[] files = new File(directory, coalescer.getListenerId()).listFiles();
+        if (files != null) for (File file : files) file.delete();
+        new File(directory, coalescer.getListenerId()).delete();
+        directory.delete();
+    }
+
+    @Test
+    public void testLogsBufferedMessages() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "coalescer-test-" + System.nanoTime());
+        JournalMessageLogger<TestMessage> messageLogger = restartWithLogger(directory);
+        try {
+            coalescer.receive(new TestMessage(1, 10));
+            assertEquals(1, messageLogger.getInProcessMessages(coalescer.getListenerId(), 10).size());
+
+            coalescer.flush();
+            assertEquals(1, received.size());
+            assertTrue(messageLogger.getInProcessMessages(coalescer.getListenerId(), 10).isEmpty());
+        } finally {
+            coalescer.stop();
+            messageLogger.destroy();
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testRestoresBufferWhenTargetFails() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "coalescer-test-" + System.nanoTime());
+        JournalMessageLogger<TestMessage> messageLogger = restartWithLogger(directory);
+        try {
+            coalescer.receive(new TestMessage(1, 10));
+            coalescer.receive(new TestMessage(2, 20, 21));
+            unavailable = true;
+            try {
+                coalescer.receive(new TestMessage(3, 30, 31));
+                fail();
+            } catch (ProcessorUnavailableException e) {
+                //message 3 is handed back
+            }
+            assertEquals(2, messageLogger.getInProcessMessages(coalescer.getListenerId(), 10).size());
+
+            unavailable = false;
+            coalescer.flush();
+            assertEquals(1, received.size());
+            assertEquals(Arrays.asList(10, 20, 21), received.get(0).getItems());
+            assertTrue(messageLogger.getInProcessMessages(coalescer.getListenerId(), 10).isEmpty());
+        } finally {
+            coalescer.stop();
+            messageLogger.destroy();
+            delete(directory);
+        }
+    }
+}
@@ -4,8 +4,16 @@ import org.h2.jdbcx.JdbcDataSource;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.simplemessaging.Message;
+import org.simplemessaging.MessageHandler;
+import org.simplemessaging.RetryScheduleHandler;
+import org.simplemessaging.serialization.KryoMessageSerializer;
+import org.simplemessaging.serialization.MessageBuffer;
+import org.simplemessaging.serialization.MessageSerializer;
 
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -39,6 +47,346 @@ public class DbMessageLoggerTest {
         }
     }
 
+    @Test
+    public void testLogProcessingAndFailed() {
+        TestMessage message = new TestMessage(1, 10, 11);
+        dbLogger.logProcessing(listener, message);
+        assertEquals(1, dbLogger.getInProcessMessages(listener, 10).size());
 
+        dbLogger.logFailed(listener, message, new Exception());
+        assertTrue(dbLogger.getInProcessMessages(listener, 10).isEmpty());
+        List<TestMessage> failed = dbLogger.getFailedMessages(listener, 10);
+        assertEquals(1, failed.size());
+        assertEquals(Arrays.asList(10, 11), failed.get(0).getItems());
+        assertEquals(1, failed.get(0).getFailCount());
 
+        dbLogger.logCompleted(listener, message);
+        assertTrue(dbLogger.getFailedMessages(listener, 10).isEmpty());
+    }
+
+    @Test
+    public void testReprocessingKeepsFailCount() {
+        TestMessage message = new TestMessage(3, 30);
+        dbLogger.logProcessing(listener, message);
+        dbLogger.logFailed(listener, message, new Exception());
+        dbLogger.logProcessing(listener, message);
+
+        List<TestMessage> inProcess = dbLogger.getInProcessMessages(listener, 10);
+        assertEquals(1, inProcess.size());
+        assertEquals(1, inProcess.get(0).getFailCount());
+        assertNotNull(dbLogger.findNotification(listener, 3));
+    }
+
+    @Test
+    public void testSpillKeepsFailCount() {
+        TestMessage message = new TestMessage(6, 60);
+        dbLogger.logProcessing(listener, message);
+        dbLogger.logFailed(listener, message, new Exception());
+        dbLogger.logSpilled(listener, message);
+        dbLogger.logSpilled(listener, new TestMessage(7, 70));
+
+        assertEquals(1, ((TestMessage) dbLogger.findFailedMessage(listener, 6)).getFailCount());
+        assertEquals(0, ((TestMessage) dbLogger.findFailedMessage(listener, 7)).getFailCount());
+    }
+
+    @Test
+    public void testLogLargeMessage() {
+        TestMessage message = new TestMessage(4);
+        for (int i = 0; i < 5000; i++) {
+            message.getItems().add(100000 + i);
+        }
+        dbLogger.logProcessing(listener, message);
+
+        TestMessage logged = (TestMessage) dbLogger.findNotification(listener, 4);
+        assertEquals(message.getItems(), logged.getItems());
+    }
+
+    @Test
+    public void testLogMessageOverFormerColumnSize() {
+        TestMessage message = new TestMessage(5);
+        for (int i = 0; i < 60000; i++) {
+            message.getItems().add(100000 + i);
+        }
+        dbLogger.logProcessing(listener, message);
+        dbLogger.logFailed(listener, message, new Exception());
+
+        TestMessage logged = (TestMessage) dbLogger.findFailedMessage(listener, 5);
+        assertNotNull(logged);
+        assertEquals(message.getItems(), logged.getItems());
+    }
+
+    @Test
+    public void testFailedMessagesPaging() {
+        DbMessageLogger<TestMessage> pagingLogger = new DbMessageLogger<TestMessage>();
+        pagingLogger.setDataSource(ds);
+        pagingLogger.register(listener);
+        for (int id = 1; id <= 5; id++) {
+            TestMessage message = new TestMessage(id, id);
+            pagingLogger.logProcessing(listener, message);
+            pagingLogger.logFailed(listener, message, new Exception());
+        }
+        assertEquals(Arrays.asList(1, 2), ids(pagingLogger.getFailedMessages(listener, 2)));
+        assertEquals(Arrays.asList(3, 4), ids(pagingLogger.getFailedMessages(listener, 2)));
+        assertEquals(Arrays.asList(5, 1), ids(pagingLogger.getFailedMessages(listener, 2)));
+        assertEquals(5, pagingLogger.getFailedMessages(listener, 10).size());
+    }
+
+    @Test
+    public void testStreamFailedMessages() {
+        dbLogger.setStreamPageSize(2);
+        for (int id = 1; id <= 5; id++) {
+            TestMessage message = new TestMessage(id, id);
+            dbLogger.logProcessing(listener, message);
+            dbLogger.logFailed(listener, message, new Exception());
+        }
+        final List<TestMessage> streamed = new ArrayList<TestMessage>();
+        int count = dbLogger.streamFailedMessages(listener, 0, new MessageHandler<TestMessage>() {
+            public boolean handle(TestMessage message) {
+                streamed.add(message);
+                return true;
+            }
+        });
+        assertEquals(5, count);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), ids(streamed));
+
+        count = dbLogger.streamFailedMessages(listener, 0, new MessageHandler<TestMessage>() {
+            public boolean handle(TestMessage message) {
+                return message.getId() < 3;
+            }
+        });
+        assertEquals(3, count);
+    }
+
+    private static List<Integer> ids(List<TestMessage> messages) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (TestMessage message : messages) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testWriteBehind() {
+        DbMessageLogger<TestMessage> asyncLogger = new DbMessageLogger<TestMessage>();
+        asyncLogger.setDataSource(ds);
+        asyncLogger.setWriteMode(DbMessageLogger.WriteMode.ASYNC);
+        asyncLogger.setLingerMillis(1000);
+        asyncLogger.register(listener);
+        try {
+            TestMessage completed = new TestMessage(1, 10);
+            TestMessage failed = new TestMessage(2, 20);
+            asyncLogger.logProcessing(listener, completed);
+            asyncLogger.logProcessing(listener, failed);
+            asyncLogger.logCompleted(listener, completed);
+            asyncLogger.logFailed(listener, failed, new Exception());
+
+            List<TestMessage> failedMessages = asyncLogger.getFailedMessages(listener, 10);
+            assertEquals(1, failedMessages.size());
+            assertEquals(2, failedMessages.get(0).getId());
+            assertTrue(asyncLogger.getInProcessMessages(listener, 10).isEmpty());
+        } finally {
+            asyncLogger.destroy();
+        }
+    }
+
+    @Test
+    public void testRetrySchedule() {
+        TestMessage failed = new TestMessage(20, 200);
+        TestMessage inProcess = new TestMessage(21, 210);
+        dbLogger.logProcessing(listener, failed);
+        dbLogger.logProcessing(listener, inProcess);
+        dbLogger.logFailed(listener, failed, new Exception());
+        dbLogger.logRetryAt(listener, failed, 123456789L);
+
+        final List<long[]> schedule = new ArrayList<long[]>();
+        dbLogger.streamRetrySchedule(listener, new RetryScheduleHandler() {
+            public boolean handle(int id, int failCount, long retryAt) {
+                schedule.add(new long[]{id, failCount, retryAt});
+                return true;
+            }
+        });
+        assertEquals(1, schedule.size());
+        assertArrayEquals(new long[]{20, 1, 123456789L}, schedule.get(0));
+        assertNotNull(dbLogger.findFailedMessage(listener, 20));
+        assertNull(dbLogger.findFailedMessage(listener, 21));
+    }
+
+    @Test
+    public void testInProcessMessagesNotPaged() {
+        DbMessageLogger<TestMessage> pagingLogger = new DbMessageLogger<TestMessage>();
+        pagingLogger.setDataSource(ds);
+        pagingLogger.register(listener);
+        pagingLogger.logProcessing(listener, new TestMessage(Integer.MIN_VALUE, 1));
+        for (int id = 1; id <= 3; id++) {
+            pagingLogger.logProcessing(listener, new TestMessage(id, id));
+        }
+        assertEquals(Arrays.asList(Integer.MIN_VALUE, 1), ids(pagingLogger.getInProcessMessages(listener, 2)));
+        assertEquals(Arrays.asList(Integer.MIN_VALUE, 1), ids(pagingLogger.getInProcessMessages(listener, 2)));
+    }
+
+    private DbMessageLogger<TestMessage> clusterLogger(String nodeId, long leaseMillis) {
+        DbMessageLogger<TestMessage> logger = new DbMessageLogger<TestMessage>();
+        logger.setDataSource(ds);
+        logger.setNodeId(nodeId);
+        logger.setLeaseMillis(leaseMillis);
+        logger.register(listener);
+        return logger;
+    }
+
+    @Test
+    public void testFailedMessagesClaimedByOneNode() {
+        DbMessageLogger<TestMessage> nodeA = clusterLogger("a", 60000);
+        DbMessageLogger<TestMessage> nodeB = clusterLogger("b", 60000);
+        try {
+            for (int id = 1; id <= 4; id++) {
+                TestMessage message = new TestMessage(id, id);
+                nodeA.logProcessing(listener, message);
+                nodeA.logFailed(listener, message, new Exception());
+            }
+            assertEquals(Arrays.asList(1, 2), ids(nodeA.getFailedMessages(listener, 2)));
+            assertEquals(Arrays.asList(3, 4), ids(nodeB.getFailedMessages(listener, 10)));
+            assertNull(nodeA.findFailedMessage(listener, 3));
+            assertNotNull(nodeB.findFailedMessage(listener, 3));
+
+            TestMessage retried = new TestMessage(1, 1);
+            nodeA.logProcessing(listener, retried);
+            nodeA.logFailed(listener, retried, new Exception()); //released for any node
+            assertNotNull(nodeB.findFailedMessage(listener, 1));
+        } finally {
+            nodeA.destroy();
+            nodeB.destroy();
+        }
+    }
+
+    @Test
+    public void testExpiredLeasesMarkedAsFailed() throws Exception {
+        DbMessageLogger<TestMessage> nodeA = clusterLogger("a", 50);
+        DbMessageLogger<TestMessage> nodeB = clusterLogger("b", 60000);
+        try {
+            nodeA.destroy(); //node a dies, its leases are not renewed anymore
+            nodeA.logProcessing(listener, new TestMessage(1, 1));
+            nodeB.logProcessing(listener, new TestMessage(2, 2));
+            Thread.sleep(100);
+            DbMessageLogger<TestMessage> nodeC = clusterLogger("c", 60000);
+            try {
+                assertEquals(Arrays.asList(1), ids(nodeC.getFailedMessages(listener, 10)));
+                assertEquals(Arrays.asList(2), ids(nodeC.getInProcessMessages(listener, 10)));
+            } finally {
+                nodeC.destroy();
+            }
+        } finally {
+            nodeB.destroy();
+        }
+    }
+
+    @Test
+    public void testLeasesRenewedAfterFailedWrite() throws Exception {
+        final KryoMessageSerializer kryo = new KryoMessageSerializer();
+        DbMessageLogger<TestMessage> nodeA = new DbMessageLogger<TestMessage>();
+        nodeA.setDataSource(ds);
+        nodeA.setNodeId("a");
+        nodeA.setLeaseMillis(600);
+        nodeA.setWriteMode(DbMessageLogger.WriteMode.ASYNC);
+        nodeA.setSerializer(new MessageSerializer() {
+            public MessageBuffer serialise(Message message) {
+                if (message.getId() == 2) throw new IllegalStateException("write failed");
+                return kryo.serialise(message);
+            }
+
+            public <T extends Message> T deserialise(byte[] data) {
+                return kryo.<T>deserialise(data);
+            }
+        });
+        nodeA.register(listener);
+        try {
+            nodeA.logProcessing(listener, new TestMessage(1, 1));
+            nodeA.flush();
+            nodeA.logProcessing(listener, new TestMessage(2, 2)); //fails the window flushed by the lease timer
+            Thread.sleep(1500);
+            DbMessageLogger<TestMessage> nodeB = clusterLogger("b", 60000);
+            try {
+                assertEquals(Arrays.asList(1), ids(nodeB.getInProcessMessages(listener, 10))); //still leased by a
+            } finally {
+                nodeB.destroy();
+            }
+        } finally {
+            nodeA.destroy();
+        }
+    }
+
+    @Test
+    public void testRegisterAgainKeepsRowsInProcess() {
+        DbMessageLogger<TestMessage> nodeA = clusterLogger("a", 60000);
+        try {
+            nodeA.logProcessing(listener, new TestMessage(1, 1));
+            nodeA.register(listener); //e.g. the listener restarted, its rows in process belong to this run
+            assertEquals(Arrays.asList(1), ids(nodeA.getInProcessMessages(listener, 10)));
+        } finally {
+            nodeA.destroy();
+        }
+        DbMessageLogger<TestMessage> restartedA = clusterLogger("a", 60000);
+        try {
+            assertEquals(Arrays.asList(1), ids(restartedA.getFailedMessages(listener, 10))); //left by the previous process
+        } finally {
+            restartedA.destroy();
+        }
+    }
+
+    @Test
+    public void testSyncCallsReuseConnections() throws Exception {
+        final int[] connections = {0};
+        JdbcDataSource countingDs = new JdbcDataSource() {
+            @Override
+            public Connection getConnection() throws SQLException {
+                connections[0]++;
+                return super.getConnection();
+            }
+        };
+        countingDs.setURL(ds.getURL());
+        countingDs.setUser("sa");
+        countingDs.setPassword("sa");
+        DbMessageLogger<TestMessage> reusingLogger = new DbMessageLogger<TestMessage>();
+        reusingLogger.setDataSource(countingDs);
+        reusingLogger.setMaxIdleConnections(4);
+        reusingLogger.register(listener);
+        try {
+            int registered = connections[0];
+            for (int id = 1; id <= 5; id++) {
+                TestMessage message = new TestMessage(id, id);
+                reusingLogger.logProcessing(listener, message);
+                reusingLogger.logFailed(listener, message, new Exception());
+            }
+            assertEquals(5, reusingLogger.getFailedMessages(listener, 10).size());
+            assertEquals(registered, connections[0]); //the connection opened by register is reused
+        } finally {
+            reusingLogger.destroy();
+        }
+    }
+
+    @Test
+    public void testFailedIdleConnectionReplaced() throws Exception {
+        final List<Connection> opened = new ArrayList<Connection>();
+        JdbcDataSource recordingDs = new JdbcDataSource() {
+            @Override
+            public Connection getConnection() throws SQLException {
+                Connection connection = super.getConnection();
+                opened.add(connection);
+                return connection;
+            }
+        };
+        recordingDs.setURL(ds.getURL());
+        recordingDs.setUser("sa");
+        recordingDs.setPassword("sa");
+        DbMessageLogger<TestMessage> reusingLogger = new DbMessageLogger<TestMessage>();
+        reusingLogger.setDataSource(recordingDs);
+        reusingLogger.setMaxIdleConnections(1);
+        reusingLogger.register(listener);
+        try {
+            for (Connection connection : opened) connection.close(); //e.g. the database restarted
+            reusingLogger.logProcessing(listener, new TestMessage(1, 1));
+            assertNotNull(reusingLogger.findNotification(listener, 1));
+        } finally {
+            reusingLogger.destroy();
+        }
+    }
 }
@@ -0,0 +1,506 @@
+package org.simplemessaging.basic;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ValueFuture;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.simplemessaging.AsyncMessageProcessor;
+import org.simplemessaging.BatchMessageProcessor;
+import org.simplemessaging.FailedProcessingException;
+import org.simplemessaging.InvalidMessageException;
+import org.simplemessaging.MessageProcessor;
+import org.simplemessaging.ProcessorUnavailableException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class GenericMessageListenerTest {
+    static String listenerId = "testListener";
+    File directory;
+    JournalMessageLogger<TestMessage> messageLogger;
+    GenericMessageListener<TestMessage> listener;
+    List<Runnable> tasks = Collections.synchronizedList(new ArrayList<Runnable>());
+    List<TestMessage> processed = new ArrayList<TestMessage>();
+
+    @Before
+    public void before() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "listener-test-" + System.nanoTime());
+        messageLogger = new JournalMessageLogger<TestMessage>();
+        messageLogger.setDirectory(directory.getPath());
+        messageLogger.setCompactionInterval(0);
+
+        listener = new GenericMessageListener<TestMessage>();
+        listener.setListenerId(listenerId);
+        listener.setMessageLogger(messageLogger);
+        listener.setProcessingBatchSize(1);
+        listener.setTaskExecutor(new Executor() {
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        listener.setMessageProcessor(new MessageProcessor<TestMessage>() {
+            public void process(TestMessage message) throws FailedProcessingException, InvalidMessageException {
+                processed.add(message);
+            }
+
+            public boolean isAvailable() {
+                return true;
+            }
+        });
+    }
+
+    @After
+    public void after() {
+        listener.stop();
+        messageLogger.destroy();
+        File[] files = new File(directory, listenerId).listFiles();
+        if (files != null) for (File file : files) file.delete();
+        new File(directory, listenerId).delete();
+        directory.delete();
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    @Test
+    public void testReceive() throws Exception {
+        listener.start();
+        listener.receive(new TestMessage(1, 10, 11, 12));
+        assertEquals(3, listener.getQueueDepth());
+        assertEquals(3, messageLogger.getInProcessMessages(listenerId, 10).size());
+
+        runTasks();
+        assertEquals(3, processed.size());
+        assertEquals(0, listener.getQueueDepth());
+        assertTrue(messageLogger.getInProcessMessages(listenerId, 10).isEmpty());
+    }
+
+    @Test
+    public void testSpillWhenQueueFull() throws Exception {
+        listener.setMaxQueuedParts(2);
+        listener.setOverflowPolicy(GenericMessageListener.OverflowPolicy.SPILL);
+        listener.start();
+        listener.receive(new TestMessage(1, 10, 11, 12));
+        assertEquals(2, listener.getQueueDepth());
+        assertEquals(0, listener.getRemainingCapacity());
+        List<TestMessage> spilled = messageLogger.getFailedMessages(listenerId, 10);
+        assertEquals(1, spilled.size());
+        assertEquals(0, spilled.get(0).getFailCount());
+
+        runTasks();
+        assertEquals(2, listener.getRemainingCapacity());
+        listener.retryFailedMessages();
+        runTasks();
+        assertEquals(3, processed.size());
+        assertTrue(messageLogger.getFailedMessages(listenerId, 10).isEmpty());
+    }
+
+    @Test
+    public void testInterruptedWhileBlocked() throws Exception {
+        listener.setMaxQueuedParts(1);
+        listener.start();
+        final Thread receiver = Thread.currentThread();
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                receiver.interrupt();
+            }
+        }.start();
+        try {
+            listener.receive(new TestMessage(1, 10, 11));
+            fail();
+        } catch (ProcessorUnavailableException e) {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(1, listener.getQueueDepth());
+        assertEquals(1, messageLogger.getInProcessMessages(listenerId, 10).size());
+        assertTrue(messageLogger.getFailedMessages(listenerId, 10).isEmpty());
+        runTasks();
+        assertEquals(1, processed.size());
+    }
+
+    @Test(expected = ProcessorUnavailableException.class)
+    public void testFailWhenQueueFull() throws Exception {
+        listener.setMaxQueuedParts(2);
+        listener.setOverflowPolicy(GenericMessageListener.OverflowPolicy.FAIL);
+        listener.start();
+        listener.receive(new TestMessage(1, 10));
+        listener.receive(new TestMessage(2, 20, 21));
+    }
+
+    @Test
+    public void testBatchProcessor() throws Exception {
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        listener.setPartsPerBatch(2);
+        listener.setMessageProcessor(new BatchMessageProcessor<TestMessage>() {
+            public List<Exception> processBatch(List<TestMessage> parts) {
+                batchSizes.add(parts.size());
+                List<Exception> outcomes = new ArrayList<Exception>();
+                for (TestMessage part : parts) {
+                    int item = part.getItems().get(0);
+                    outcomes.add(item == 11 ? new FailedProcessingException("failed")
+                            : item == 12 ? new InvalidMessageException("invalid") : null);
+                }
+                return outcomes;
+            }
+
+            public void process(TestMessage message) {
+                throw new UnsupportedOperationException();
+            }
+
+            public boolean isAvailable() {
+                return true;
+            }
+        });
+        listener.start();
+        listener.receive(new TestMessage(1, 10, 11, 12));
+        assertEquals(2, tasks.size());
+
+        runTasks();
+        assertEquals(Arrays.asList(2, 1), batchSizes);
+        assertEquals(0, listener.getQueueDepth());
+        assertTrue(messageLogger.getInProcessMessages(listenerId, 10).isEmpty());
+        List<TestMessage> failed = messageLogger.getFailedMessages(listenerId, 10);
+        assertEquals(1, failed.size());
+        assertEquals(Arrays.asList(11), failed.get(0).getItems());
+    }
+
+    @Test
+    public void testShortBatchOutcomeFailsUnmatchedParts() throws Exception {
+        listener.setPartsPerBatch(3);
+        listener.setMessageProcessor(new BatchMessageProcessor<TestMessage>() {
+            public List<Exception> processBatch(List<TestMessage> parts) {
+                return parts.size() == 3 ? Arrays.<Exception>asList(null, null) : null;
+            }
+
+            public void process(TestMessage message) {
+                throw new UnsupportedOperationException();
+            }
+
+            public boolean isAvailable() {
+                return true;
+            }
+        });
+        listener.start();
+        listener.receive(new TestMessage(1, 10, 11, 12));
+        runTasks();
+        List<TestMessage> failed = messageLogger.getFailedMessages(listenerId, 10);
+        assertEquals(1, failed.size());
+        assertEquals(Arrays.asList(12), failed.get(0).getItems());
+    }
+
+    @Test
+    public void testRetryScheduler() throws Exception {
+        final List<Integer> attempts = new ArrayList<Integer>();
+        listener.setMessageProcessor(new MessageProcessor<TestMessage>() {
+            public void process(TestMessage message) throws FailedProcessingException {
+                attempts.add(message.getId());
+                if (attempts.size() < 3) throw new FailedProcessingException("failed");
+                processed.add(message);
+            }
+
+            public boolean isAvailable() {
+                return true;
+            }
+        });
+        RetryScheduler<TestMessage> scheduler = new RetryScheduler<TestMessage>();
+        scheduler.setInitialDelay(50);
+        scheduler.setJitter(0);
+        listener.setRetryScheduler(scheduler);
+        listener.start();
+        assertEquals(50, scheduler.delay(1));
+        assertEquals(100, scheduler.delay(2));
+
+        listener.receive(new TestMessage(1, 10));
+        runTasks();
+        assertEquals(1, scheduler.size());
+        assertEquals(1, messageLogger.getFailedMessages(listenerId, 10).size());
+
+        long start = System.currentTimeMillis();
+        while (processed.isEmpty() && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+            runTasks();
+        }
+        assertEquals(Arrays.asList(1, 1, 1), attempts);
+        assertTrue(System.currentTimeMillis() - start >= 140);
+        assertEquals(0, scheduler.size());
+        assertTrue(messageLogger.getFailedMessages(listenerId, 10).isEmpty());
+    }
+
+    @Test
+    public void testRetrySchedulerCountsParts() throws Exception {
+        listener.setMaxQueuedParts(2);
+        messageLogger.register(listenerId);
+        for (int id = 1; id <= 2; id++) {
+            TestMessage message = new TestMessage(id, id * 10, id * 10 + 1);
+            messageLogger.logProcessing(listenerId, message);
+            messageLogger.logFailed(listenerId, message, new Exception());
+        }
+        RetryScheduler<TestMessage> scheduler = new RetryScheduler<TestMessage>();
+        scheduler.setPollInterval(50);
+        listener.setRetryScheduler(scheduler);
+        listener.start();
+
+        long start = System.currentTimeMillis();
+        while (tasks.size() < 2 && System.currentTimeMillis() - start < 5000) Thread.sleep(10);
+        Thread.sleep(100);
+        assertEquals(2, tasks.size());
+        assertEquals(1, scheduler.size());
+
+        runTasks();
+        start = System.currentTimeMillis();
+        while (tasks.size() < 2 && System.currentTimeMillis() - start < 5000) Thread.sleep(10);
+        runTasks();
+        assertEquals(4, processed.size());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void testRetryPostponedWhileListenerNotRunning() throws Exception {
+        messageLogger.register(listenerId);
+        TestMessage message = new TestMessage(1, 10);
+        messageLogger.logProcessing(listenerId, message);
+        messageLogger.logFailed(listenerId, message, new Exception());
+        RetryScheduler<TestMessage> scheduler = new RetryScheduler<TestMessage>();
+        scheduler.setPollInterval(20);
+        scheduler.setInitialDelay(50);
+        scheduler.start(listener); //due before the listener runs
+        Thread.sleep(150);
+        assertEquals(1, scheduler.size());
+
+        listener.setRetryScheduler(scheduler);
+        listener.start();
+        long start = System.currentTimeMillis();
+        while (tasks.isEmpty() && System.currentTimeMillis() - start < 5000) Thread.sleep(10);
+        runTasks();
+        assertEquals(1, processed.size());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void testBisectIsolatesBadItem() throws Exception {
+        final List<TestMessage> calls = new ArrayList<TestMessage>();
+        listener.setMessageProcessor(new MessageProcessor<TestMessage>() {
+            public void process(TestMessage message) throws FailedProcessingException {
+                calls.add(message);
+                if (message.getItems().contains(13)) throw new FailedProcessingException("bad item");
+                processed.add(message);
+            }
+
+            public boolean isAvailable() {
+                return true;
+            }
+        });
+        listener.setProcessingBatchSize(8);
+        listener.setBisect(true);
+        listener.setMaxRetrySingle(1);
+        listener.start();
+        listener.receive(new TestMessage(1, 10, 11, 12, 13, 14, 15, 16, 17));
+        runTasks();
+        for (int i = 0; i < 5; i++) {
+            listener.retryFailedMessages();
+            runTasks();
+        }
+
+        assertEquals(8, calls.size()); //1 + 2 per split + 1 retry of the bad item
+        List<Integer> items = new ArrayList<Integer>();
+        for (TestMessage message : processed) items.addAll(message.getItems());
+        Collections.sort(items);
+        assertEquals(Arrays.asList(10, 11, 12, 14, 15, 16, 17), items);
+        assertEquals(Arrays.asList(13), calls.get(calls.size() - 1).getItems());
+        assertTrue(messageLogger.getFailedMessages(listenerId, 10).isEmpty());
+    }
+
+    @Test
+    public void testDedupSkipsQueuedAndCompletedParts() throws Exception {
+        listener.setDedupCapacity(100);
+        listener.start();
+        listener.receive(new TestMessage(1, 10));
+        listener.receive(new TestMessage(1, 10));
+        assertEquals(1, tasks.size());
+        runTasks();
+        listener.receive(new TestMessage(1, 10));
+        runTasks();
+        assertEquals(1, processed.size());
+    }
+
+    @Test
+    public void testAsyncProcessor() throws Exception {
+        final List<ValueFuture<Object>> futures = new ArrayList<ValueFuture<Object>>();
+        listener.setMessageProcessor(new AsyncMessageProcessor<TestMessage>() {
+            public ListenableFuture<?> processAsync(TestMessage message) {
+                ValueFuture<Object> future = ValueFuture.create();
+                futures.add(future);
+                return future;
+            }
+
+            public void process(TestMessage message) {
+                throw new UnsupportedOperationException();
+            }
+
+            public boolean isAvailable() {
+                return true;
+            }
+        });
+        listener.start();
+        listener.receive(new TestMessage(1, 10, 11, 12));
+        runTasks();
+        assertEquals(3, futures.size());
+        assertEquals(3, listener.getQueueDepth());
+
+        futures.get(0).set(null);
+        futures.get(1).setException(new FailedProcessingException("failed"));
+        futures.get(2).setException(new InvalidMessageException("invalid"));
+        assertEquals(3, tasks.size()); //completions run in the task executor
+        runTasks();
+        assertEquals(0, listener.getQueueDepth());
+        assertTrue(messageLogger.getInProcessMessages(listenerId, 10).isEmpty());
+        List<TestMessage> failed = messageLogger.getFailedMessages(listenerId, 10);
+        assertEquals(1, failed.size());
+        assertEquals(Arrays.asList(11), failed.get(0).getItems());
+    }
+
+    @Test
+    public void testRecoverFailedMessagesHoldsOneConnection() throws Exception {
+        final AtomicInteger open = new AtomicInteger();
+        final AtomicInteger maxOpen = new AtomicInteger();
+        JdbcDataSource ds = new JdbcDataSource() {
+            @Override
+            public Connection getConnection() throws SQLException {
+                final Connection connection = super.getConnection();
+                maxOpen.set(Math.max(maxOpen.get(), open.incrementAndGet()));
+                return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class},
+                        new InvocationHandler() {
+                            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                                if (method.getName().equals("close") && !connection.isClosed()) open.decrementAndGet();
+                                try {
+                                    return method.invoke(connection, args);
+                                } catch (InvocationTargetException e) {
+                                    throw e.getCause();
+                                }
+                            }
+                        });
+            }
+        };
+        ds.setURL("jdbc:h2:~/h2dbtest1");
+        ds.setUser("sa");
+        ds.setPassword("sa");
+        DbMessageLogger<TestMessage> dbLogger = new DbMessageLogger<TestMessage>();
+        dbLogger.setDataSource(ds);
+        dbLogger.setStreamPageSize(2);
+        listener.setMessageLogger(dbLogger);
+        try {
+            listener.start();
+            new JdbcTemplate(ds).update("DELETE FROM \"LOG_" + listenerId + "\"");
+            for (int id = 1; id <= 5; id++) {
+                TestMessage message = new TestMessage(id, id);
+                dbLogger.logProcessing(listenerId, message);
+                dbLogger.logFailed(listenerId, message, new Exception());
+            }
+            maxOpen.set(open.get());
+
+            assertEquals(5, listener.recoverFailedMessages());
+            runTasks();
+            assertEquals(5, processed.size());
+            assertTrue(dbLogger.getFailedMessages(listenerId, 10).isEmpty());
+            assertEquals(1, maxOpen.get());
+        } finally {
+            listener.stop();
+            dbLogger.destroy();
+        }
+    }
+
+    @Test
+    public void testStopDrainsInFlightParts() throws Exception {
+        listener.setDrainTimeout(5000);
+        listener.start();
+        listener.receive(new TestMessage(1, 10, 11, 12));
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                runTasks();
+            }
+        }.start();
+        listener.stop();
+        assertEquals(3, processed.size());
+        assertEquals(0, listener.getQueueDepth());
+        assertTrue(messageLogger.getInProcessMessages(listenerId, 10).isEmpty());
+    }
+
+    @Test
+    public void testStopLeavesUndrainedPartsInProcess() throws Exception {
+        listener.setDrainTimeout(10);
+        listener.start();
+        listener.receive(new TestMessage(1, 10, 11, 12));
+        listener.stop();
+        runTasks();
+        assertTrue(processed.isEmpty());
+        assertEquals(0, listener.getQueueDepth());
+        assertEquals(3, messageLogger.getInProcessMessages(listenerId, 10).size());
+    }
+
+    @Test
+    public void testRestartIgnoresPartsOfPreviousRun() throws Exception {
+        listener.setDrainTimeout(10);
+        listener.setMaxConcurrent(1);
+        listener.start();
+        listener.receive(new TestMessage(1, 10, 11, 12));
+        listener.stop();
+        List<Runnable> previous = new ArrayList<Runnable>(tasks);
+        tasks.clear();
+
+        listener.start();
+        assertEquals(0, listener.getQueueDepth());
+        listener.receive(new TestMessage(2, 20));
+        for (Runnable task : previous) task.run();
+        assertTrue(processed.isEmpty());
+        assertEquals(1, listener.getQueueDepth());
+        runTasks();
+        assertEquals(1, processed.size());
+        assertEquals(0, listener.getQueueDepth());
+    }
+
+    @Test
+    public void testStopFreesCapacityOfDroppedParts() throws Exception {
+        listener.setDrainTimeout(10);
+        listener.setMaxConcurrent(1);
+        listener.setMaxQueuedParts(3);
+        listener.start();
+        listener.receive(new TestMessage(1, 10, 11, 12));
+        assertEquals(0, listener.getRemainingCapacity());
+        listener.stop();
+        runTasks();
+        assertTrue(processed.isEmpty());
+        assertEquals(3, listener.getRemainingCapacity());
+        assertEquals(3, messageLogger.getInProcessMessages(listenerId, 10).size());
+    }
+}
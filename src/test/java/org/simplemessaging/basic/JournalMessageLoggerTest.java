@@ -0,0 +1,118 @@
+package org.simplemessaging.basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.simplemessaging.RetryScheduleHandler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class JournalMessageLoggerTest {
+    static String listener = "testListener";
+    File directory;
+    JournalMessageLogger<TestMessage> logger;
+
+    @Before
+    public void before() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "journal-test-" + System.nanoTime());
+        logger = newLogger();
+        logger.register(listener);
+    }
+
+    @After
+    public void after() {
+        logger.destroy();
+        File[] files = new File(directory, listener).listFiles();
+        if (files != null) for (File file : files) file.delete();
+        new File(directory, listener).delete();
+        directory.delete();
+    }
+
+    private JournalMessageLogger<TestMessage> newLogger() {
+        JournalMessageLogger<TestMessage> journalLogger = new JournalMessageLogger<TestMessage>();
+        journalLogger.setDirectory(directory.getPath());
+        journalLogger.setSegmentSize(1024);
+        journalLogger.setCompactionInterval(0);
+        return journalLogger;
+    }
+
+    @Test
+    public void testLogAndReplay() {
+        TestMessage completed = new TestMessage(1, 10);
+        TestMessage failed = new TestMessage(2, 20, 21);
+        TestMessage stalled = new TestMessage(3, 30);
+        logger.logProcessing(listener, completed);
+        logger.logProcessing(listener, failed);
+        logger.logProcessing(listener, stalled);
+        logger.logCompleted(listener, completed);
+        logger.logFailed(listener, failed, new Exception());
+
+        assertEquals(1, logger.getInProcessMessages(listener, 10).size());
+        assertEquals(1, logger.getFailedMessages(listener, 10).size());
+        logger.destroy();
+
+        logger = newLogger();
+        logger.register(listener);
+        assertTrue(logger.getInProcessMessages(listener, 10).isEmpty());
+        List<TestMessage> failedMessages = logger.getFailedMessages(listener, 10);
+        assertEquals(2, failedMessages.size());
+        assertEquals(Arrays.asList(20, 21), failedMessages.get(0).getItems());
+        assertEquals(1, failedMessages.get(0).getFailCount());
+        assertEquals(0, failedMessages.get(1).getFailCount());
+        assertNull(logger.findNotification(listener, 1));
+    }
+
+    @Test
+    public void testCompaction() {
+        for (int i = 0; i < 200; i++) {
+            TestMessage message = new TestMessage(i, i);
+            logger.logProcessing(listener, message);
+            if (i % 10 != 0) logger.logCompleted(listener, message);
+        }
+        int segments = new File(directory, listener).list().length;
+        logger.compact();
+        assertTrue(new File(directory, listener).list().length < segments);
+        logger.destroy();
+
+        logger = newLogger();
+        logger.register(listener);
+        assertEquals(20, logger.getFailedMessages(listener, 100).size());
+        assertNull(logger.findNotification(listener, 11));
+    }
+
+    @Test
+    public void testRetryScheduleSurvivesReplayAndCompaction() {
+        TestMessage failed = new TestMessage(1, 10);
+        logger.logProcessing(listener, failed);
+        logger.logFailed(listener, failed, new Exception());
+        logger.logRetryAt(listener, failed, 123456789L);
+        for (int i = 2; i < 100; i++) {
+            TestMessage message = new TestMessage(i, i);
+            logger.logProcessing(listener, message);
+            logger.logCompleted(listener, message);
+        }
+        logger.compact();
+        logger.destroy();
+
+        logger = newLogger();
+        logger.register(listener);
+        final List<long[]> schedule = new ArrayList<long[]>();
+        logger.streamRetrySchedule(listener, new RetryScheduleHandler() {
+            public boolean handle(int id, int failCount, long retryAt) {
+                schedule.add(new long[]{id, failCount, retryAt});
+                return true;
+            }
+        });
+        assertEquals(1, schedule.size());
+        assertArrayEquals(new long[]{1, 1, 123456789L}, schedule.get(0));
+        assertEquals(Arrays.asList(10), logger.findFailedMessage(listener, 1).getItems());
+        assertNull(logger.findFailedMessage(listener, 2));
+    }
+}
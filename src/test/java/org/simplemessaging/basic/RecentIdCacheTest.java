@@ -0,0 +1,53 @@
+package org.simplemessaging.basic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class RecentIdCacheTest {
+
+    @Test
+    public void testEvictsOldest() {
+        RecentIdCache cache = new RecentIdCache(3, 0);
+        assertTrue(cache.add(1, 0));
+        assertTrue(cache.add(2, 0));
+        assertTrue(cache.add(3, 0));
+        assertFalse(cache.add(2, 0));
+        assertTrue(cache.add(4, 0));
+        assertFalse(cache.contains(1, 0));
+        assertTrue(cache.contains(2, 0));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testExpires() {
+        RecentIdCache cache = new RecentIdCache(10, 100);
+        assertTrue(cache.add(1, 1000));
+        assertFalse(cache.add(1, 1099));
+        assertTrue(cache.add(1, 1100));
+        assertFalse(cache.add(1, 1150));
+    }
+
+    @Test
+    public void testRemoveWithCollisions() {
+        RecentIdCache cache = new RecentIdCache(1000, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(cache.add(i * 64, 0));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            cache.remove(i * 64);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 1, cache.contains(i * 64, 0));
+        }
+        for (int i = 0; i < 2000; i++) {
+            cache.add(100000 + i, 0);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(cache.contains(i * 64, 0));
+            assertTrue(cache.contains(101000 + i, 0));
+        }
+    }
+}
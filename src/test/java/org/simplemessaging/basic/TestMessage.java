@@ -0,0 +1,60 @@
+package org.simplemessaging.basic;
+
+import org.simplemessaging.AbstractMessage;
+import org.simplemessaging.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Simple composite message of integer items used in tests
+ */
+public class TestMessage extends AbstractMessage {
+    private int id;
+    private ArrayList<Integer> items = new ArrayList<Integer>();
+
+    public TestMessage() {
+    }
+
+    public TestMessage(int id, Integer... items) {
+        this.id = id;
+        this.items.addAll(Arrays.asList(items));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Message> List<T> partition(int size) {
+        List<T> parts = new ArrayList<T>();
+        if (items.size() <= size) {
+            parts.add((T) this);
+            return parts;
+        }
+        for (int i = 0; i < items.size(); i += size) {
+            TestMessage part = new TestMessage(id * 1000 + i);
+            part.items.addAll(items.subList(i, Math.min(i + size, items.size())));
+            parts.add((T) part);
+        }
+        return parts;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public List<Integer> getItems() {
+        return items;
+    }
+
+    @Override
+    public String toString() {
+        return "TestMessage{id=" + id + ", items=" + items + "}";
+    }
+}
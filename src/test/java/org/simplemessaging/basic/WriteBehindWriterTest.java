@@ -0,0 +1,81 @@
+package org.simplemessaging.basic;
+
+import org.junit.Test;
+import org.simplemessaging.basic.WriteBehindWriter.Kind;
+import org.simplemessaging.basic.WriteBehindWriter.LogEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class WriteBehindWriterTest {
+    final List<LogEvent> written = new ArrayList<LogEvent>();
+    int failures;
+
+    private WriteBehindWriter writer() {
+        return new WriteBehindWriter(new WriteBehindWriter.BatchWriter() {
+            public void write(List<List<LogEvent>> rounds) throws Exception {
+                if (failures-- > 0) throw new Exception("write failed");
+                for (List<LogEvent> round : rounds) written.addAll(round);
+            }
+        }, 10, 10, 0, "test-writer");
+    }
+
+    @Test
+    public void testFailedWindowIsRetried() {
+        failures = WriteBehindWriter.MAX_ATTEMPTS - 1;
+        WriteBehindWriter writer = writer();
+        try {
+            writer.enqueue(new LogEvent("l", new TestMessage(1, 10), Kind.PROCESSING, true));
+            assertEquals(1, written.size());
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testFlushedCallerGetsWriteFailure() {
+        failures = WriteBehindWriter.MAX_ATTEMPTS;
+        WriteBehindWriter writer = writer();
+        try {
+            writer.enqueue(new LogEvent("l", new TestMessage(1, 10), Kind.PROCESSING, true));
+            fail();
+        } catch (LogWriteException e) {
+            assertTrue(written.isEmpty());
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testInterruptedFlushedCallerGetsWriteFailure() {
+        WriteBehindWriter writer = writer();
+        try {
+            Thread.currentThread().interrupt();
+            writer.enqueue(new LogEvent("l", new TestMessage(1, 10), Kind.PROCESSING, true));
+            fail();
+        } catch (LogWriteException e) {
+            assertTrue(Thread.interrupted());
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testFlushFailsAfterDroppedWindow() {
+        failures = WriteBehindWriter.MAX_ATTEMPTS;
+        WriteBehindWriter writer = writer();
+        try {
+            writer.enqueue(new LogEvent("l", new TestMessage(1, 10), Kind.PROCESSING, false));
+            writer.flush();
+            fail();
+        } catch (LogWriteException e) {
+            //the window with the event and possibly the flush marker was dropped
+        } finally {
+            writer.close();
+        }
+    }
+}
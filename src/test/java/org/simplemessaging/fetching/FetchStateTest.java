@@ -0,0 +1,90 @@
+package org.simplemessaging.fetching;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class FetchStateTest {
+    File file;
+
+    @Before
+    public void before() {
+        file = new File(System.getProperty("java.io.tmpdir"), "fetch-state-" + System.nanoTime());
+    }
+
+    @After
+    public void after() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void testSaveReplacesState() throws Exception {
+        assertNull(FetchState.loadFrom(file.getPath()));
+        FetchState state = new FetchState();
+        state.putParam("page", 1);
+        state.putParam("since", new Date(1000));
+        state.putParam("name", "cms");
+        state.saveTo(file.getPath());
+
+        state.putParam("page", 2);
+        state.saveTo(file.getPath());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        FetchState loaded = FetchState.loadFrom(file.getPath());
+        assertEquals(Integer.valueOf(2), loaded.<Integer>getParam("page"));
+        assertEquals(new Date(1000), loaded.getParam("since"));
+        assertEquals("cms", loaded.getParam("name"));
+        assertEquals(FetchState.Status.CONTINUE, loaded.getStatus());
+    }
+
+    @Test
+    public void testLoadFallsBackToTempFile() throws Exception {
+        FetchState state = new FetchState();
+        state.putParam("page", 3);
+        state.saveTo(file.getPath());
+        //crash after the old state was deleted and before the new one was renamed
+        assertTrue(file.renameTo(new File(file.getPath() + ".tmp")));
+
+        assertEquals(Integer.valueOf(3), FetchState.loadFrom(file.getPath()).<Integer>getParam("page"));
+    }
+
+    @Test
+    public void testIncompleteTempFileIgnored() throws Exception {
+        FetchState state = new FetchState();
+        state.putParam("page", 3);
+        state.saveTo(file.getPath());
+        File temp = new File(file.getPath() + ".tmp");
+        assertTrue(file.renameTo(temp));
+        //crash while writing the first state
+        RandomAccessFile data = new RandomAccessFile(temp, "rw");
+        data.setLength(data.length() - 4);
+        data.close();
+
+        assertNull(FetchState.loadFrom(file.getPath()));
+        assertFalse(temp.exists());
+    }
+
+    @Test
+    public void testLeftoverTempFileDeleted() throws Exception {
+        FetchState state = new FetchState();
+        state.putParam("page", 3);
+        state.saveTo(file.getPath());
+        state.putParam("page", 4);
+        state.saveTo(file.getPath() + ".tmp"); //crash before the rename
+
+        assertEquals(Integer.valueOf(3), FetchState.loadFrom(file.getPath()).<Integer>getParam("page"));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        //the state file deleted by an operator isn't restored from the leftover
+        assertTrue(file.delete());
+        assertNull(FetchState.loadFrom(file.getPath()));
+    }
+}
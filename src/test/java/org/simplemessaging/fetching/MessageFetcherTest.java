@@ -0,0 +1,181 @@
+package org.simplemessaging.fetching;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.simplemessaging.MessageListener;
+import org.simplemessaging.basic.TestMessage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class MessageFetcherTest {
+    File stateFile;
+    PageFetcher fetcher;
+    List<TestMessage> received = Collections.synchronizedList(new ArrayList<TestMessage>());
+
+    /**
+     * Fetches pages of one item, up to the given number of pages
+     */
+    static class PageFetcher extends MessageFetcher<TestMessage> {
+        final int pages;
+        int failAt = -1;
+        boolean failWithError;
+        CountDownLatch fetchedSecondPage = new CountDownLatch(1);
+        List<Integer> savedPages = new ArrayList<Integer>();
+
+        PageFetcher(int pages) {
+            this.pages = pages;
+        }
+
+        @Override
+        public TestMessage fetch(FetchState fetchState) throws Exception {
+            int page = fetchState.<Integer>getParam("page");
+            if (page == failAt && failWithError) throw new AssertionError("fetch failed");
+            if (page == failAt) throw new Exception("fetch failed");
+            if (page == 1) fetchedSecondPage.countDown();
+            fetchState.putParam("page", page + 1);
+            if (page + 1 >= pages) fetchState.setStatus(FetchState.Status.COMPLETED);
+            return new TestMessage(page, page);
+        }
+
+        @Override
+        void saveFetchState(FetchState state, String stateFile) {
+            savedPages.add(state.<Integer>getParam("page"));
+            super.saveFetchState(state, stateFile);
+        }
+
+        @Override
+        public FetchState defaultFetchState() {
+            FetchState state = new FetchState();
+            state.putParam("page", 0);
+            return state;
+        }
+    }
+
+    @Before
+    public void before() {
+        stateFile = new File(System.getProperty("java.io.tmpdir"), "fetch-state-" + System.nanoTime());
+        fetcher = new PageFetcher(5);
+        fetcher.setFetchStateFile(stateFile.getPath());
+        fetcher.setMessageListeners(Collections.<MessageListener<TestMessage>>singletonList(new MessageListener<TestMessage>() {
+            public void receive(TestMessage notification) {
+                received.add(notification);
+            }
+        }));
+    }
+
+    @After
+    public void after() {
+        fetcher.stop();
+        stateFile.delete();
+    }
+
+    private void assertReceivedPages(int count) {
+        assertEquals(count, received.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, received.get(i).getId());
+        }
+    }
+
+    @Test
+    public void testFetch() throws Exception {
+        fetcher.start();
+        fetcher.fetch();
+        assertReceivedPages(5);
+        assertEquals(Integer.valueOf(5), FetchState.loadFrom(stateFile.getPath()).<Integer>getParam("page"));
+    }
+
+    @Test
+    public void testPipelinedFetch() throws Exception {
+        fetcher.setPrefetchDepth(1);
+        fetcher.setMessageListeners(Collections.<MessageListener<TestMessage>>singletonList(new MessageListener<TestMessage>() {
+            public void receive(TestMessage notification) {
+                if (notification.getId() == 0) {
+                    try {
+                        //the second page is fetched while the first is delivered
+                        assertTrue(fetcher.fetchedSecondPage.await(5, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        fail();
+                    }
+                }
+                received.add(notification);
+            }
+        }));
+        fetcher.start();
+        fetcher.fetch();
+        assertReceivedPages(5);
+        assertEquals(FetchState.Status.COMPLETED, fetcher.getFetchState().getStatus());
+        assertEquals(Integer.valueOf(5), FetchState.loadFrom(stateFile.getPath()).<Integer>getParam("page"));
+    }
+
+    @Test
+    public void testPipelinedFetchFailure() throws Exception {
+        fetcher.setPrefetchDepth(2);
+        fetcher.failAt = 3;
+        fetcher.start();
+        try {
+            fetcher.fetch();
+            fail();
+        } catch (Exception e) {
+            assertEquals("fetch failed", e.getMessage());
+        }
+        assertReceivedPages(3);
+        //checkpoint of the last delivered page
+        assertEquals(Integer.valueOf(3), FetchState.loadFrom(stateFile.getPath()).<Integer>getParam("page"));
+    }
+
+    @Test(timeout = 5000)
+    public void testPipelinedFetchError() throws Exception {
+        fetcher.setPrefetchDepth(2);
+        fetcher.failAt = 3;
+        fetcher.failWithError = true;
+        fetcher.start();
+        try {
+            fetcher.fetch();
+            fail();
+        } catch (AssertionError e) {
+            assertEquals("fetch failed", e.getMessage());
+        }
+        assertReceivedPages(3);
+        assertEquals(Integer.valueOf(3), FetchState.loadFrom(stateFile.getPath()).<Integer>getParam("page"));
+    }
+
+    @Test
+    public void testCoalescedCheckpoints() throws Exception {
+        fetcher.setCheckpointPages(2);
+        fetcher.start();
+        fetcher.fetch();
+        assertReceivedPages(5);
+        assertEquals(Arrays.asList(2, 4, 5), fetcher.savedPages); //the last page is saved at the end of the run
+        assertEquals(Integer.valueOf(5), fetcher.getFetchState().<Integer>getParam("page"));
+        assertEquals(Integer.valueOf(5), FetchState.loadFrom(stateFile.getPath()).<Integer>getParam("page"));
+    }
+
+    @Test
+    public void testCheckpointSavedOnStop() throws Exception {
+        fetcher.setCheckpointPages(0);
+        fetcher.setMessageListeners(Collections.<MessageListener<TestMessage>>singletonList(new MessageListener<TestMessage>() {
+            public void receive(TestMessage notification) {
+                received.add(notification);
+                if (notification.getId() == 1) {
+                    fetcher.stop();
+                    assertEquals(Arrays.asList(1), fetcher.savedPages); //saved by stop, while the fetch still runs
+                }
+            }
+        }));
+        fetcher.start();
+        fetcher.fetch();
+        assertReceivedPages(2);
+        assertEquals(Arrays.asList(1, 2), fetcher.savedPages);
+    }
+}
@@ -0,0 +1,218 @@
+package org.simplemessaging.fetching;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Test;
+import org.simplemessaging.basic.TestMessage;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class ShardLeaseManagerTest {
+    static final List<String> SHARDS = Arrays.asList("a", "b", "c", "d");
+    JdbcDataSource ds;
+
+    @Before
+    public void before() {
+        ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:leases" + System.nanoTime() + ";DB_CLOSE_DELAY=-1");
+        ds.setUser("sa");
+        ds.setPassword("sa");
+    }
+
+    private ShardLeaseManager node(String nodeId, long leaseMillis) {
+        ShardLeaseManager manager = new ShardLeaseManager();
+        manager.setDataSource(ds);
+        manager.setNodeId(nodeId);
+        manager.setLeaseMillis(leaseMillis);
+        manager.register("testFetcher");
+        return manager;
+    }
+
+    @Test
+    public void testRebalanceOnJoinAndLeave() {
+        ShardLeaseManager a = node("a", 60000);
+        ShardLeaseManager b = node("b", 60000);
+        assertEquals(SHARDS, a.acquire(SHARDS));
+
+        assertTrue(b.acquire(SHARDS).isEmpty()); //all leased to a
+        List<String> ownedByA = a.acquire(SHARDS);
+        assertEquals(2, ownedByA.size());
+        List<String> ownedByB = b.acquire(SHARDS);
+        assertEquals(2, ownedByB.size());
+        Set<String> all = new HashSet<String>(ownedByA);
+        all.addAll(ownedByB);
+        assertEquals(new HashSet<String>(SHARDS), all);
+        assertEquals(ownedByA, a.acquire(SHARDS));
+
+        b.release();
+        assertEquals(SHARDS, a.acquire(SHARDS));
+    }
+
+    @Test
+    public void testUnevenShareGivesEveryNodeAShard() {
+        ShardLeaseManager a = node("a", 60000);
+        ShardLeaseManager b = node("b", 60000);
+        ShardLeaseManager c = node("c", 60000);
+        assertEquals(SHARDS, a.acquire(SHARDS));
+        assertTrue(b.acquire(SHARDS).isEmpty());
+        assertTrue(c.acquire(SHARDS).isEmpty());
+
+        assertEquals(2, a.acquire(SHARDS).size()); //first by id, takes the extra shard
+        List<String> ownedByB = b.acquire(SHARDS);
+        assertEquals(1, ownedByB.size());
+        List<String> ownedByC = c.acquire(SHARDS);
+        assertEquals(1, ownedByC.size());
+        Set<String> all = new HashSet<String>(a.acquire(SHARDS));
+        all.addAll(ownedByB);
+        all.addAll(ownedByC);
+        assertEquals(new HashSet<String>(SHARDS), all);
+    }
+
+    @Test
+    public void testLeaseRenewedWhileFetching() throws Exception {
+        ShardLeaseManager a = node("a", 150);
+        ShardLeaseManager b = node("b", 60000);
+        assertEquals(SHARDS, a.acquire(SHARDS));
+        a.beginFetch("a");
+        Thread.sleep(400);
+        List<String> ownedByB = b.acquire(SHARDS);
+        assertEquals(2, ownedByB.size());
+        assertFalse(ownedByB.contains("a"));
+
+        a.endFetch("a");
+        Thread.sleep(400);
+        assertEquals(new HashSet<String>(SHARDS), new HashSet<String>(b.acquire(SHARDS)));
+        a.release();
+    }
+
+    @Test
+    public void testLeaseRenewalSurvivesUnexpectedErrors() throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean();
+        DataSource flaky = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{DataSource.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if(failing.get()) throw new IllegalStateException("Pool closed");
+                        try {
+                            return method.invoke(ds, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        ShardLeaseManager a = node("a", 150);
+        a.setDataSource(flaky);
+        ShardLeaseManager b = node("b", 60000);
+        assertEquals(SHARDS, a.acquire(SHARDS));
+        failing.set(true);
+        a.beginFetch("a");
+        Thread.sleep(120);
+        failing.set(false);
+        Thread.sleep(300);
+        assertFalse(b.acquire(SHARDS).contains("a"));
+        a.release();
+    }
+
+    @Test
+    public void testLargeFetchStateStored() throws Exception {
+        Connection connection = ds.getConnection();
+        connection.createStatement().execute("CREATE TABLE \"SHARD_testFetcher\" (shard VARCHAR(100) NOT NULL"
+                + ", owner VARCHAR(100), leaseExpiry BIGINT DEFAULT 0, fetchState VARCHAR(4000), PRIMARY KEY(shard))");
+        connection.close();
+        ShardLeaseManager a = node("a", 60000);
+        a.acquire(SHARDS);
+
+        StringBuilder cursor = new StringBuilder();
+        while(cursor.length() < 10000) cursor.append("cursor");
+        FetchState state = new FetchState();
+        state.putParam("cursor", cursor.toString());
+        a.saveState("a", state);
+        assertEquals(cursor.toString(), a.loadState("a").getParam("cursor"));
+        a.release();
+    }
+
+    @Test
+    public void testExpiredLeasesAreTakenOver() throws Exception {
+        ShardLeaseManager a = node("a", 50);
+        ShardLeaseManager b = node("b", 60000);
+        assertEquals(SHARDS, a.acquire(SHARDS));
+        Thread.sleep(100);
+        assertEquals(SHARDS, b.acquire(SHARDS));
+    }
+
+    @Test
+    public void testFetchStateStoredWithLease() {
+        ShardLeaseManager a = node("a", 60000);
+        ShardLeaseManager b = node("b", 60000);
+        a.acquire(SHARDS);
+        assertNull(a.loadState("a"));
+
+        FetchState state = new FetchState();
+        state.putParam("page", 3);
+        a.saveState("a", state);
+        assertEquals(Integer.valueOf(3), b.loadState("a").<Integer>getParam("page"));
+        try {
+            b.saveState("a", state);
+            fail();
+        } catch (IllegalStateException e) {
+            //not the owner
+        }
+    }
+
+    @Test
+    public void testLeasedFetcherStoresStatesInDatabase() throws Exception {
+        final List<String> fetched = new ArrayList<String>();
+        ShardedMessageFetcher<TestMessage> fetcher = new ShardedMessageFetcher<TestMessage>() {
+            @Override
+            public List<String> shards() {
+                return SHARDS;
+            }
+
+            @Override
+            public TestMessage fetch(String shard, FetchState fetchState) {
+                synchronized (fetched) {
+                    fetched.add(shard);
+                }
+                fetchState.putParam("page", 1);
+                fetchState.setStatus(FetchState.Status.COMPLETED);
+                return null;
+            }
+
+            @Override
+            public FetchState defaultFetchState(String shard) {
+                return new FetchState();
+            }
+        };
+        ShardLeaseManager manager = new ShardLeaseManager();
+        manager.setDataSource(ds);
+        manager.setNodeId("a");
+        fetcher.setLeaseManager(manager);
+        fetcher.setFetcherName("testFetcher");
+        fetcher.start();
+        try {
+            fetcher.fetch();
+        } finally {
+            fetcher.stop();
+        }
+        assertEquals(new HashSet<String>(SHARDS), new HashSet<String>(fetched));
+        for (String shard : SHARDS) {
+            FetchState state = manager.loadState(shard);
+            assertEquals(Integer.valueOf(1), state.<Integer>getParam("page"));
+            assertEquals(shard, state.getParam(ShardedMessageFetcher.SHARD_PARAM));
+        }
+    }
+}
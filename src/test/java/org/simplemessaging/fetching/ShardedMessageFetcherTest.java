@@ -0,0 +1,136 @@
+package org.simplemessaging.fetching;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.simplemessaging.MessageListener;
+import org.simplemessaging.basic.TestMessage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class ShardedMessageFetcherTest {
+    static final List<String> SHARDS = Arrays.asList("0", "1", "2");
+    File stateFile;
+    ShardFetcher fetcher;
+    List<TestMessage> received = Collections.synchronizedList(new ArrayList<TestMessage>());
+
+    /**
+     * Fetches 3 pages of one item per shard. The item is shard * 10 + page
+     */
+    static class ShardFetcher extends ShardedMessageFetcher<TestMessage> {
+        CountDownLatch started = new CountDownLatch(SHARDS.size());
+        String failing;
+
+        @Override
+        public List<String> shards() {
+            return SHARDS;
+        }
+
+        @Override
+        public TestMessage fetch(String shard, FetchState fetchState) throws Exception {
+            int page = fetchState.<Integer>getParam("page");
+            if (page == 0) {
+                started.countDown();
+                if (!started.await(5, TimeUnit.SECONDS)) throw new Exception("shards not fetched in parallel");
+            }
+            if (shard.equals(failing) && page == 1) throw new Exception("fetch failed");
+            fetchState.putParam("page", page + 1);
+            if (page == 2) fetchState.setStatus(FetchState.Status.COMPLETED);
+            int item = Integer.parseInt(shard) * 10 + page;
+            return new TestMessage(item, item);
+        }
+
+        @Override
+        public FetchState defaultFetchState(String shard) {
+            FetchState state = new FetchState();
+            state.putParam("page", 0);
+            return state;
+        }
+    }
+
+    @Before
+    public void before() {
+        stateFile = new File(System.getProperty("java.io.tmpdir"), "shard-state-" + System.nanoTime());
+        fetcher = new ShardFetcher();
+        fetcher.setMaxParallelShards(SHARDS.size());
+        fetcher.setFetchStateFile(stateFile.getPath());
+        fetcher.setMessageListeners(Collections.<MessageListener<TestMessage>>singletonList(new MessageListener<TestMessage>() {
+            public void receive(TestMessage notification) {
+                received.add(notification);
+            }
+        }));
+    }
+
+    @After
+    public void after() {
+        fetcher.stop();
+        for (String shard : SHARDS) new File(stateFile.getPath() + "." + shard).delete();
+    }
+
+    private List<Integer> receivedItems(String shard) {
+        List<Integer> items = new ArrayList<Integer>();
+        synchronized (received) {
+            for (TestMessage message : received) {
+                if (message.getId() / 10 == Integer.parseInt(shard)) items.add(message.getId() % 10);
+            }
+        }
+        return items;
+    }
+
+    private int savedPage(String shard) throws Exception {
+        FetchState state = FetchState.loadFrom(stateFile.getPath() + "." + shard);
+        assertEquals(shard, state.getParam(ShardedMessageFetcher.SHARD_PARAM));
+        return state.<Integer>getParam("page");
+    }
+
+    @Test
+    public void testFetchShardsInParallel() throws Exception {
+        fetcher.start();
+        fetcher.fetch();
+        assertEquals(9, received.size());
+        for (String shard : SHARDS) {
+            assertEquals(Arrays.asList(0, 1, 2), receivedItems(shard));
+            assertEquals(3, savedPage(shard));
+            assertEquals(FetchState.Status.COMPLETED, fetcher.getShardState(shard).getStatus());
+        }
+    }
+
+    @Test
+    public void testFetchShardsOnVirtualThreads() throws Exception {
+        fetcher.setVirtualThreads(true);
+        fetcher.setPrefetchDepth(1);
+        fetcher.start();
+        fetcher.fetch();
+        assertEquals(9, received.size());
+        for (String shard : SHARDS) {
+            assertEquals(Arrays.asList(0, 1, 2), receivedItems(shard));
+            assertEquals(3, savedPage(shard));
+        }
+    }
+
+    @Test
+    public void testFailedShardDoesNotStopOthers() throws Exception {
+        fetcher.failing = "1";
+        fetcher.start();
+        try {
+            fetcher.fetch();
+            fail();
+        } catch (Exception e) {
+            assertEquals("fetch failed", e.getMessage());
+        }
+        assertEquals(Arrays.asList(0), receivedItems("1"));
+        assertEquals(1, savedPage("1"));
+        assertEquals(Arrays.asList(0, 1, 2), receivedItems("0"));
+        assertEquals(Arrays.asList(0, 1, 2), receivedItems("2"));
+    }
+}
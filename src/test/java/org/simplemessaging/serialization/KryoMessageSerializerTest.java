@@ -0,0 +1,75 @@
+package org.simplemessaging.serialization;
+
+import org.junit.Test;
+import org.simplemessaging.basic.TestMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class KryoMessageSerializerTest {
+
+    /**
+     * Message holding lists backed by JDK internals
+     */
+    public static class ViewMessage extends TestMessage {
+        List<String> names;
+        List<Integer> window;
+
+        public ViewMessage() {
+        }
+
+        ViewMessage(int id) {
+            super(id, id);
+        }
+    }
+
+    private <T extends TestMessage> T roundTrip(KryoMessageSerializer serializer, T message) {
+        MessageBuffer buffer = serializer.serialise(message);
+        try {
+            return serializer.<T>deserialise(buffer.toByteArray());
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void testJdkListViews() {
+        ViewMessage message = new ViewMessage(1);
+        message.names = Arrays.asList("a", "b");
+        message.window = new ArrayList<Integer>(Arrays.asList(1, 2, 3, 4)).subList(1, 3);
+
+        ViewMessage copy = roundTrip(new KryoMessageSerializer(), message);
+        assertEquals(1, copy.getId());
+        assertEquals(Arrays.asList("a", "b"), copy.names);
+        assertEquals(Arrays.asList(2, 3), copy.window);
+    }
+
+    @Test
+    public void testPoolNeverBlocksAndLargeBuffersAreDropped() {
+        KryoMessageSerializer serializer = new KryoMessageSerializer();
+        serializer.setPoolSize(1);
+        serializer.setMaxRetainedBufferSize(8 * 1024);
+
+        //more buffers outstanding than pooled instances
+        MessageBuffer first = serializer.serialise(new TestMessage(1, 1));
+        MessageBuffer second = serializer.serialise(new TestMessage(2, 2));
+        assertEquals(2, serializer.<TestMessage>deserialise(second.toByteArray()).getId());
+        first.release();
+        second.release();
+
+        ViewMessage large = new ViewMessage(3);
+        char[] text = new char[64 * 1024];
+        Arrays.fill(text, 'x');
+        large.names = Arrays.asList(new String(text));
+        assertEquals(text.length, roundTrip(serializer, large).names.get(0).length());
+
+        //the instance returned with a grown buffer serialises small and large messages again
+        assertEquals(4, roundTrip(serializer, new TestMessage(4, 4)).getId());
+        assertEquals(text.length, roundTrip(serializer, large).names.get(0).length());
+    }
+}
@@ -0,0 +1,75 @@
+package org.simplemessaging.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class PriorityLaneExecutorTest {
+    List<Runnable> tasks = new ArrayList<Runnable>();
+    List<Integer> executed = new ArrayList<Integer>();
+
+    private Runnable task(final int lane) {
+        return new Runnable() {
+            public void run() {
+                executed.add(lane);
+            }
+        };
+    }
+
+    @Test
+    public void testWeightedShares() {
+        PriorityLaneExecutor executor = new PriorityLaneExecutor(new Executor() {
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        }, 1, new int[]{3, 1});
+        for (int i = 0; i < 8; i++) {
+            executor.execute(1, task(1));
+        }
+        for (int i = 0; i < 8; i++) {
+            executor.execute(0, task(0));
+        }
+        while (!tasks.isEmpty()) {
+            assertEquals(1, tasks.size());
+            tasks.remove(0).run();
+        }
+        assertEquals(16, executed.size());
+        assertEquals(Integer.valueOf(1), executed.get(0)); //passed on before the other lane had tasks
+        int live = 0;
+        for (int lane : executed.subList(1, 9)) if (lane == 0) live++;
+        assertEquals(6, live);
+    }
+
+    @Test
+    public void testZeroWeightRunsWhenOthersIdle() {
+        PriorityLaneExecutor executor = new PriorityLaneExecutor(new Executor() {
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        }, 1, new int[]{1, 0});
+        executor.execute(0, task(0));
+        executor.execute(1, task(1));
+        executor.execute(1, task(1));
+        executor.execute(0, task(0));
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+        assertEquals(Arrays.asList(0, 0, 1, 1), executed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeWeightRejected() {
+        new PriorityLaneExecutor(new Executor() {
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        }, 1, new int[]{1, -1});
+    }
+}
@@ -0,0 +1,55 @@
+package org.simplemessaging.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class StripedExecutorTest {
+
+    @Test
+    public void testKeysRunInOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        StripedExecutor executor = new StripedExecutor(pool, 4);
+        final List<List<Integer>> runs = new ArrayList<List<Integer>>();
+        final AtomicInteger[] running = new AtomicInteger[10];
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1000);
+        for (int key = 0; key < 10; key++) {
+            runs.add(new ArrayList<Integer>());
+            running[key] = new AtomicInteger();
+        }
+        for (int i = 0; i < 1000; i++) {
+            final int key = i % 10;
+            final int seq = i;
+            executor.execute(key, new Runnable() {
+                public void run() {
+                    if (running[key].incrementAndGet() > 1) overlaps.incrementAndGet();
+                    runs.get(key).add(seq);
+                    running[key].decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertEquals(0, overlaps.get());
+        for (int key = 0; key < 10; key++) {
+            List<Integer> run = runs.get(key);
+            assertEquals(100, run.size());
+            for (int i = 0; i < run.size(); i++) {
+                assertEquals(key + i * 10, run.get(i).intValue());
+            }
+        }
+    }
+}
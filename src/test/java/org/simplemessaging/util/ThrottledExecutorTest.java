@@ -0,0 +1,85 @@
+package org.simplemessaging.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class ThrottledExecutorTest {
+
+    @Test
+    public void testLimitsConcurrency() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        ThrottledExecutor executor = new ThrottledExecutor(pool, 2, 0, 0);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        if (now > maxRunning.get()) maxRunning.set(now);
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+        executor.shutdown();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testLimitsRate() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        ThrottledExecutor executor = new ThrottledExecutor(pool, 0, 100, 1);
+        final CountDownLatch done = new CountDownLatch(11);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 11; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(executor.getQueued() > 0);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        executor.shutdown();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testDropsTasksRejectedByShutDownExecutor() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        pool.shutdown();
+        ThrottledExecutor executor = new ThrottledExecutor(pool, 1, 0, 0);
+        final AtomicInteger runs = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            });
+        }
+        assertEquals(0, executor.getQueued());
+        assertEquals(0, executor.getInFlight());
+        assertEquals(0, runs.get());
+        executor.shutdown();
+    }
+}
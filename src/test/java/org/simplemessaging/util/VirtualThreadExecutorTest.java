@@ -0,0 +1,104 @@
+package org.simplemessaging.util;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ */
+public class VirtualThreadExecutorTest {
+
+    @Test
+    public void testLimitsConcurrencyAndThreads() throws Exception {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor(3, "test");
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final CountDownLatch done = new CountDownLatch(30);
+        for (int i = 0; i < 30; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    threads.add(Thread.currentThread());
+                    int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        if (now > maxRunning.get()) maxRunning.set(now);
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 3);
+        assertTrue(threads.size() < 30); //queued tasks reuse the running threads instead of starting their own
+        for (Thread thread : threads) {
+            assertEquals(VirtualThreadExecutor.isSupported(), isVirtual(thread));
+        }
+    }
+
+    @Test
+    public void testShutdownRejectsNewTasksAndRunsQueuedOnes() throws Exception {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor(1, "test");
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        });
+        executor.execute(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        executor.shutdown();
+        assertTrue(executor.isShutdown());
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                }
+            });
+            fail();
+        } catch (RejectedExecutionException e) {
+            //shut down
+        }
+        blocked.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testUnlimitedNeedsVirtualThreads() {
+        try {
+            new VirtualThreadExecutor(0, "test");
+            assertTrue(VirtualThreadExecutor.isSupported());
+        } catch (IllegalStateException e) {
+            assertFalse(VirtualThreadExecutor.isSupported());
+        }
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}